@@ -0,0 +1,278 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  Bitset evaluation of Boolean queries under the unranked Boolean
+ *  model, where every match scores 1.0.  Each #SCORE leaf becomes a
+ *  long[] bitset with one bit per document; #AND and #OR combine
+ *  their arguments' bitsets a word (64 documents) at a time, in
+ *  simple loops that the JIT compiler can vectorize.  The set bits of
+ *  the root's bitset feed TopKCollector directly.
+ *  <p>
+ *  Supported queries are trees of #AND and #OR whose leaves are
+ *  #SCORE operators.  A term leaf's postings are read straight from
+ *  the index (or the PostingsCache); other leaves (e.g., #SYN, #NEAR)
+ *  are iterated with their docIterators.
+ *  </p><p>
+ *  When the PostingsCache is enabled and every leaf is a term, the
+ *  query is evaluated with DocidSets instead.  A DocidSet stores a
+ *  sparse chunk of 65536 documents as an array, so rare terms don't
+ *  fill a maxDoc-bit bitset per query.  The cache keeps each list's
+ *  DocidSet next to its compressed postings (see
+ *  PostingsCache.getDocidSet), so a term's set is built once and
+ *  reused by later queries until the list is evicted.
+ *  </p>
+ */
+public class BitsetEvaluator {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate a query with bitsets, if it is supported.
+   *  @param q A query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param k The number of documents to return.
+   *  @return The k best documents, sorted, or null if the query isn't
+   *  supported.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (QrySop q, RetrievalModel r, int k)
+    throws IOException {
+
+    if (! isSupported (q, r)) {
+      return null;
+    }
+
+    TopKCollector results = new TopKCollector (k);
+
+    if (PostingsCache.isEnabled () && hasOnlyTermLeaves (q)) {
+      int[] docids = getDocidSet (q).toArray ();
+
+      for (int j = 0; j < docids.length; j++) {
+        results.collect (docids[j], 1.0);
+      }
+
+      return results.getScoreList ();
+    }
+
+    long[] matches = getBitset (q, r, Idx.INDEXREADER.maxDoc ());
+
+    for (int w = 0; w < matches.length; w++) {
+      long word = matches[w];
+
+      while (word != 0) {
+        results.collect ((w << 6) + Long.numberOfTrailingZeros (word), 1.0);
+        word &= word - 1;
+      }
+    }
+
+    return results.getScoreList ();
+  }
+
+  /**
+   *  Get the bitset of the documents that a query matches.
+   *  @param q A supported query.
+   *  @param r The retrieval model that determines what is a match.
+   *  @param maxDoc The number of documents in the index.
+   *  @return The bitset.  Bit d of word d / 64 is set if docid d
+   *  matches.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static long[] getBitset (Qry q, RetrievalModel r, int maxDoc)
+    throws IOException {
+
+    if (q instanceof QrySopScore) {
+      return getLeafBitset ((QrySopScore) q, r, maxDoc);
+    }
+
+    //  #AND reads its arguments until the intersection is empty.
+
+    boolean isAnd = (q instanceof QrySopAnd);
+    long[] matches = getBitset (q.args.get (0), r, maxDoc);
+
+    for (int i = 1; i < q.args.size (); i++) {
+
+      if (isAnd && isEmpty (matches)) {
+        break;
+      }
+
+      long[] matches_i = getBitset (q.args.get (i), r, maxDoc);
+
+      if (isAnd) {
+        for (int w = 0; w < matches.length; w++) {
+          matches[w] &= matches_i[w];
+        }
+      } else {
+        for (int w = 0; w < matches.length; w++) {
+          matches[w] |= matches_i[w];
+        }
+      }
+    }
+
+    return matches;
+  }
+
+  /**
+   *  Get the set of documents that a query matches from the cached
+   *  DocidSets of its terms.
+   *  @param q A supported query whose leaves are all terms.
+   *  @return The set.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static DocidSet getDocidSet (Qry q) throws IOException {
+
+    if (q instanceof QrySopScore) {
+      QryIopTerm term = (QryIopTerm) q.args.get (0);
+
+      return PostingsCache.getDocidSet (term.getTerm (), term.getField ());
+    }
+
+    //  #AND reads its arguments until the intersection is empty.
+
+    boolean isAnd = (q instanceof QrySopAnd);
+    DocidSet matches = getDocidSet (q.args.get (0));
+
+    for (int i = 1; i < q.args.size (); i++) {
+
+      if (isAnd && (matches.getNumChunks () == 0)) {
+        break;
+      }
+
+      DocidSet matches_i = getDocidSet (q.args.get (i));
+
+      matches = isAnd ? matches.and (matches_i) : matches.or (matches_i);
+    }
+
+    return matches;
+  }
+
+  /**
+   *  Get the bitset of the documents that a #SCORE leaf matches.
+   *  @param q A #SCORE operator.
+   *  @param r The retrieval model that determines what is a match.
+   *  @param maxDoc The number of documents in the index.
+   *  @return The bitset.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static long[] getLeafBitset (QrySopScore q, RetrievalModel r, int maxDoc)
+    throws IOException {
+
+    long[] matches = new long[(maxDoc + 63) >>> 6];
+    Qry arg = q.args.get (0);
+
+    if (arg instanceof QryIopTerm) {
+      QryIopTerm term = (QryIopTerm) arg;
+
+      if (PostingsCache.isEnabled ()) {
+        InvList invList =
+          PostingsCache.get (term.getTerm (), term.getField (), PostingsEnum.NONE);
+
+        for (int j = 0; j < invList.df; j++) {
+          int docid = invList.docids[j];
+          matches[docid >>> 6] |= 1L << docid;
+        }
+      } else {
+        Term luceneTerm =
+          new Term (term.getField (), new BytesRef (term.getTerm ()));
+
+        for (LeafReaderContext context : Idx.INDEXREADER.leaves ()) {
+          PostingsEnum postings =
+            context.reader ().postings (luceneTerm, PostingsEnum.NONE);
+
+          if (postings == null) {
+            continue;
+          }
+
+          int docid;
+
+          while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+            docid += context.docBase;
+            matches[docid >>> 6] |= 1L << docid;
+          }
+        }
+      }
+    } else {
+      q.initialize (r);
+
+      while (arg.docIteratorHasMatch (r)) {
+        int docid = arg.docIteratorGetMatch ();
+        matches[docid >>> 6] |= 1L << docid;
+        arg.docIteratorAdvancePast (docid);
+      }
+    }
+
+    return matches;
+  }
+
+  /**
+   *  Indicates whether every leaf of a supported query is a term.
+   *  @param q A supported query.
+   *  @return True if every #SCORE leaf's argument is a term.
+   */
+  private static boolean hasOnlyTermLeaves (Qry q) {
+
+    if (q instanceof QrySopScore) {
+      return (q.args.get (0) instanceof QryIopTerm);
+    }
+
+    for (Qry q_i : q.args) {
+      if (! hasOnlyTermLeaves (q_i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Indicates whether a bitset has no bits set.
+   *  @param matches A bitset.
+   *  @return True if the bitset is empty.
+   */
+  private static boolean isEmpty (long[] matches) {
+
+    long any = 0;
+
+    for (int w = 0; w < matches.length; w++) {
+      any |= matches[w];
+    }
+
+    return (any == 0);
+  }
+
+  /**
+   *  Indicates whether bitset evaluation supports a query.
+   *  @param q A query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return True if the query and model are supported.
+   */
+  public static boolean isSupported (Qry q, RetrievalModel r) {
+
+    if (! (r instanceof RetrievalModelUnrankedBoolean)) {
+      return false;
+    }
+
+    if (q instanceof QrySopScore) {
+      return true;
+    }
+
+    if (! ((q instanceof QrySopAnd) || (q instanceof QrySopOr))) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! isSupported (q_i, r)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,427 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A memory-mapped index of per-block statistics of inverted lists,
+ *  used by Block-Max WAND.  Each (term, field) inverted list is split
+ *  into blocks of a fixed number of postings; for each block, the
+ *  index records the last docid in the block, the largest tf in the
+ *  block, and the shortest field length of a document in the block.
+ *  Block bounds are much tighter than a bound for the whole list.
+ *  <p>
+ *  The index is a sidecar file next to the index directory (e.g.,
+ *  index.blockmax next to index/).  It is built once per index by
+ *  running this class:
+ *  </p><pre>
+ *    java BlockMaxIndex INDEX_PATH [BLOCK_SIZE]
+ *  </pre><p>
+ *  Only lists with more than one block are stored; for other lists,
+ *  the bound for the whole list is as tight.  The file contains a
+ *  header; the start of each term's blocks; an open addressing hash
+ *  table of term numbers, keyed by a hash of "field:term"; the
+ *  blocks; and a blob of the UTF-8 "field:term" keys.  A sidecar that
+ *  was built from a different commit of the index is ignored.
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x5145424d;		// "QEBM"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 40;
+  private static final String SUFFIX = ".blockmax";
+
+  /**
+   *  The default number of postings in a block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 128;
+
+  private static final int BLOCK_INTS = 3;	// lastDocid, maxTf, minLength
+
+  private final ByteBuffer buffer;
+  private final int numTerms;
+  private final int tableSize;
+  private final int blockStartsStart;
+  private final int keyOffsetsStart;
+  private final int tableStart;
+  private final int blocksStart;
+  private final int keysStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param buffer The contents of a sidecar file.
+   */
+  private BlockMaxIndex (ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.numTerms = buffer.getInt (12);
+    this.tableSize = buffer.getInt (16);
+
+    int numBlocks = buffer.getInt (20);
+
+    this.blockStartsStart = HEADER_SIZE;
+    this.keyOffsetsStart = this.blockStartsStart + 4 * (this.numTerms + 1);
+    this.tableStart = this.keyOffsetsStart + 4 * (this.numTerms + 1);
+    this.blocksStart = this.tableStart + 4 * this.tableSize;
+    this.keysStart = this.blocksStart + 4 * BLOCK_INTS * numBlocks;
+  }
+
+  /**
+   *  Build the sidecar file of the current index.  Existing sidecars
+   *  are replaced.
+   *  @param indexPath The directory that contains the current index.
+   *  @param blockSize The number of postings in a block.
+   *  @throws IOException Error accessing the index or the sidecar.
+   */
+  public static void build (String indexPath, int blockSize)
+    throws IOException {
+
+    IndexReader reader = Idx.INDEXREADER;
+
+    ByteArrayOutputStream keys = new ByteArrayOutputStream ();
+    int[] keyOffsets = new int[1024];
+    int[] blockStarts = new int[1024];
+    int[] blocks = new int[BLOCK_INTS * 1024];
+    int numTerms = 0;
+    int numBlocks = 0;
+
+    for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos (reader)) {
+
+      if (fieldInfo.getIndexOptions ().compareTo (IndexOptions.DOCS_AND_FREQS) < 0) {
+        continue;
+      }
+
+      String field = fieldInfo.name;
+      Terms terms = MultiTerms.getTerms (reader, field);
+
+      if (terms == null) {
+        continue;
+      }
+
+      int[] lengths = Idx.getFieldLengths (field);
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+
+        if (termsEnum.docFreq () <= blockSize) {
+          continue;
+        }
+
+        //  Record the term and its blocks.
+
+        if (numTerms + 2 > keyOffsets.length) {
+          keyOffsets = Arrays.copyOf (keyOffsets, 2 * keyOffsets.length);
+          blockStarts = Arrays.copyOf (blockStarts, 2 * blockStarts.length);
+        }
+
+        byte[] key = (field + ":" + term.utf8ToString ()).getBytes (StandardCharsets.UTF_8);
+
+        keys.write (key, 0, key.length);
+        blockStarts[numTerms] = numBlocks;
+        numTerms ++;
+        keyOffsets[numTerms] = keys.size ();
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        int n = 0;
+        int docid;
+
+        while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+
+          if (n % blockSize == 0) {
+            if (BLOCK_INTS * (numBlocks + 1) > blocks.length) {
+              blocks = Arrays.copyOf (blocks, 2 * blocks.length);
+            }
+
+            blocks[BLOCK_INTS * numBlocks + 1] = 0;
+            blocks[BLOCK_INTS * numBlocks + 2] = Integer.MAX_VALUE;
+            numBlocks ++;
+          }
+
+          int b = BLOCK_INTS * (numBlocks - 1);
+
+          blocks[b] = docid;
+          blocks[b + 1] = Math.max (blocks[b + 1], postings.freq ());
+          blocks[b + 2] = Math.min (blocks[b + 2], lengths[docid]);
+          n ++;
+        }
+      }
+    }
+
+    blockStarts[numTerms] = numBlocks;
+
+    //  The hash table is at most half full.  Empty slots are -1.
+
+    byte[] keyBytes = keys.toByteArray ();
+    int tableSize = Integer.highestOneBit (Math.max (2 * numTerms, 1)) * 2;
+    int[] table = new int[tableSize];
+
+    Arrays.fill (table, -1);
+
+    for (int t = 0; t < numTerms; t++) {
+      int slot = DocidMap.hash (keyBytes, keyOffsets[t], keyOffsets[t + 1] - keyOffsets[t]) &
+                 (tableSize - 1);
+
+      while (table[slot] != -1) {
+        slot = (slot + 1) & (tableSize - 1);
+      }
+
+      table[slot] = t;
+    }
+
+    //  Write a temporary file, then move it into place, so that a
+    //  partially written sidecar is never opened.
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out =
+           new DataOutputStream (
+             new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeInt (blockSize);
+      out.writeInt (numTerms);
+      out.writeInt (tableSize);
+      out.writeInt (numBlocks);
+      out.write (Sidecar.getIndexId (reader));
+
+      for (int t = 0; t <= numTerms; t++) {
+        out.writeInt (blockStarts[t]);
+      }
+
+      for (int t = 0; t <= numTerms; t++) {
+        out.writeInt (keyOffsets[t]);
+      }
+
+      for (int t : table) {
+        out.writeInt (t);
+      }
+
+      for (int i = 0; i < BLOCK_INTS * numBlocks; i++) {
+        out.writeInt (blocks[i]);
+      }
+
+      out.write (keyBytes);
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Find the block of a term that covers a document:  the first block
+   *  at or after a starting block whose last docid is at least docid.
+   *  Blocks are searched by galloping, so a sequence of increasing
+   *  docids is cheap.
+   *  @param t A term number.
+   *  @param from The block to start searching from.
+   *  @param docid An internal document id.
+   *  @return The block, or getEndBlock (t) if the term doesn't occur
+   *  in any document at or after docid.
+   */
+  public int findBlock (int t, int from, int docid) {
+
+    int end = this.getEndBlock (t);
+    int lo = from;
+    int step = 1;
+
+    //  Gallop to a block whose last docid is at least docid, then
+    //  binary search between the last two probes.
+
+    while ((lo < end) && (this.getBlockLastDocid (lo) < docid)) {
+      int probe = lo + step;
+
+      if ((probe >= end) || (this.getBlockLastDocid (probe) >= docid)) {
+        int hi = Math.min (probe, end);
+
+        lo ++;
+
+        while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+
+          if (this.getBlockLastDocid (mid) < docid) {
+            lo = mid + 1;
+          } else {
+            hi = mid;
+          }
+        }
+
+        return lo;
+      }
+
+      lo = probe;
+      step *= 2;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Find a term.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed term string.
+   *  @return The term number, or -1 if the index doesn't have blocks
+   *  for the term.
+   */
+  public int findTerm (String field, String term) {
+
+    byte[] key = (field + ":" + term).getBytes (StandardCharsets.UTF_8);
+    int mask = this.tableSize - 1;
+    int slot = DocidMap.hash (key, 0, key.length) & mask;
+
+    while (true) {
+      int t = this.buffer.getInt (this.tableStart + 4 * slot);
+
+      if (t == -1) {
+        return -1;
+      }
+
+      if (this.keyEquals (t, key)) {
+        return t;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   *  Get the last docid in a block.
+   *  @param b A block.
+   *  @return The last internal docid in the block.
+   */
+  public int getBlockLastDocid (int b) {
+    return this.buffer.getInt (this.blocksStart + 4 * BLOCK_INTS * b);
+  }
+
+  /**
+   *  Get the largest term frequency in a block.
+   *  @param b A block.
+   *  @return The largest tf in the block.
+   */
+  public int getBlockMaxTf (int b) {
+    return this.buffer.getInt (this.blocksStart + 4 * BLOCK_INTS * b + 4);
+  }
+
+  /**
+   *  Get the shortest field length of a document in a block.
+   *  @param b A block.
+   *  @return The shortest field length in the block.
+   */
+  public int getBlockMinLength (int b) {
+    return this.buffer.getInt (this.blocksStart + 4 * BLOCK_INTS * b + 8);
+  }
+
+  /**
+   *  Get the block after the last block of a term.
+   *  @param t A term number.
+   *  @return The end of the term's blocks.
+   */
+  public int getEndBlock (int t) {
+    return this.buffer.getInt (this.blockStartsStart + 4 * (t + 1));
+  }
+
+  /**
+   *  Get the first block of a term.
+   *  @param t A term number.
+   *  @return The first block of the term.
+   */
+  public int getFirstBlock (int t) {
+    return this.buffer.getInt (this.blockStartsStart + 4 * t);
+  }
+
+  /**
+   *  Indicates whether a term's key equals a key.
+   *  @param t A term number.
+   *  @param key The UTF-8 bytes of a "field:term" key.
+   *  @return True if the term's key is the key.
+   */
+  private boolean keyEquals (int t, byte[] key) {
+
+    int start = this.buffer.getInt (this.keyOffsetsStart + 4 * t);
+    int length = this.buffer.getInt (this.keyOffsetsStart + 4 * (t + 1)) - start;
+
+    if (length != key.length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (this.buffer.get (this.keysStart + start + i) != key[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Memory-map the sidecar file of an index, if there is a current
+   *  one.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader An IndexReader for the index.
+   *  @return The block-max index, or null if there is no sidecar file
+   *  or it was built from a different commit of the index.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static BlockMaxIndex open (String indexPath, IndexReader reader)
+    throws IOException {
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+
+    if (! Files.isReadable (path)) {
+      return null;
+    }
+
+    ByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      if (channel.size () < HEADER_SIZE) {
+        return null;
+      }
+
+      buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    if ((buffer.getInt (0) != MAGIC) ||
+        (buffer.getInt (4) != VERSION) ||
+        (! Sidecar.isCurrent (buffer, 24, reader))) {
+      return null;
+    }
+
+    return new BlockMaxIndex (buffer);
+  }
+
+  /**
+   *  Build the sidecar file of an index.
+   *  @param args The index path, and optionally the block size.
+   *  @throws IOException Error accessing the index or the sidecar.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if ((args.length < 1) || (args.length > 2)) {
+      System.out.println ("Usage:  java BlockMaxIndex INDEX_PATH [BLOCK_SIZE]");
+      return;
+    }
+
+    int blockSize =
+      (args.length > 1) ? Integer.parseInt (args[1]) : DEFAULT_BLOCK_SIZE;
+
+    Idx.open (args[0]);
+    build (args[0], blockSize);
+
+    System.out.println ("Wrote " + Sidecar.getPath (args[0], SUFFIX));
+  }
+}
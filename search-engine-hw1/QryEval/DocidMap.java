@@ -0,0 +1,302 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  A memory-mapped map between internal and external document ids.
+ *  Idx uses it so that looking up an external id doesn't read a
+ *  stored Lucene document, and looking up an internal id doesn't
+ *  search the index.
+ *  <p>
+ *  The map is a sidecar file next to the index directory (e.g.,
+ *  index.docids next to index/).  It is built once per index by
+ *  running this class:
+ *  </p><pre>
+ *    java DocidMap INDEX_PATH
+ *  </pre><p>
+ *  The file contains a header; an array of maxDoc+1 offsets into a
+ *  blob of UTF-8 external ids, in internal docid order; and an open
+ *  addressing hash table of internal docids, keyed by a hash of the
+ *  external id.  Both directions are O(1).  A sidecar that was built
+ *  from a different commit of the index is ignored.
+ *  </p>
+ */
+public class DocidMap {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x5145444d;		// "QEDM"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 32;
+  private static final String SUFFIX = ".docids";
+
+  private static final String externalIdField = "externalId";
+
+  private final ByteBuffer buffer;
+  private final int maxDoc;
+  private final int tableSize;
+  private final int tableStart;
+  private final int blobStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param buffer The contents of a sidecar file.
+   */
+  private DocidMap (ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.maxDoc = buffer.getInt (8);
+    this.tableSize = buffer.getInt (12);
+    this.tableStart = HEADER_SIZE + 4 * (this.maxDoc + 1);
+    this.blobStart = this.tableStart + 4 * this.tableSize;
+  }
+
+  /**
+   *  Build the sidecar file of an index.  Existing sidecars are
+   *  replaced.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader An IndexReader for the index.
+   *  @throws IOException Error accessing the index or the sidecar.
+   */
+  public static void build (String indexPath, IndexReader reader)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    Set<String> fields = Collections.singleton (externalIdField);
+
+    //  Read the external ids in internal docid order.
+
+    ByteArrayOutputStream blob = new ByteArrayOutputStream (16 * maxDoc);
+    int[] offsets = new int[maxDoc + 1];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = reader.document (docid, fields);
+      String eid = d.get (externalIdField);
+
+      if (eid != null) {
+        byte[] b = eid.getBytes (StandardCharsets.UTF_8);
+        blob.write (b, 0, b.length);
+      }
+
+      offsets[docid + 1] = blob.size ();
+    }
+
+    byte[] ids = blob.toByteArray ();
+
+    //  The hash table is at most half full, so probe sequences are
+    //  short.  Empty slots are -1.
+
+    int tableSize = Integer.highestOneBit (Math.max (2 * maxDoc, 1)) * 2;
+    int[] table = new int[tableSize];
+
+    Arrays.fill (table, -1);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      int length = offsets[docid + 1] - offsets[docid];
+
+      if (length == 0) {
+        continue;
+      }
+
+      int slot = hash (ids, offsets[docid], length) & (tableSize - 1);
+
+      while (table[slot] != -1) {
+        slot = (slot + 1) & (tableSize - 1);
+      }
+
+      table[slot] = docid;
+    }
+
+    //  Write a temporary file, then move it into place, so that a
+    //  partially written sidecar is never opened.
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out =
+           new DataOutputStream (
+             new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeInt (maxDoc);
+      out.writeInt (tableSize);
+      out.write (Sidecar.getIndexId (reader));
+
+      for (int offset : offsets) {
+        out.writeInt (offset);
+      }
+
+      for (int docid : table) {
+        out.writeInt (docid);
+      }
+
+      out.write (ids);
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal document id.
+   *  @return The external id, or null if the document doesn't have one.
+   */
+  public String getExternalDocid (int docid) {
+
+    if ((docid < 0) || (docid >= this.maxDoc)) {
+      return null;
+    }
+
+    int start = this.buffer.getInt (HEADER_SIZE + 4 * docid);
+    int length = this.buffer.getInt (HEADER_SIZE + 4 * (docid + 1)) - start;
+
+    if (length == 0) {
+      return null;
+    }
+
+    byte[] b = new byte[length];
+
+    for (int i = 0; i < length; i++) {
+      b[i] = this.buffer.get (this.blobStart + start + i);
+    }
+
+    return new String (b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal docid of a document.
+   *  @param externalId An external document id.
+   *  @return The internal docid, or -1 if there is no such document.
+   */
+  public int getInternalDocid (String externalId) {
+
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int mask = this.tableSize - 1;
+    int slot = hash (key, 0, key.length) & mask;
+
+    while (true) {
+      int docid = this.buffer.getInt (this.tableStart + 4 * slot);
+
+      if (docid == -1) {
+        return -1;
+      }
+
+      if (this.idEquals (docid, key)) {
+        return docid;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   *  The FNV-1a hash of a byte sequence.  Hashes are stored in
+   *  sidecar files (this one and BlockMaxIndex), so it must not change.
+   *  @param b The bytes.
+   *  @param start The first byte to hash.
+   *  @param length The number of bytes to hash.
+   *  @return The hash.
+   */
+  static int hash (byte[] b, int start, int length) {
+
+    int h = 0x811c9dc5;
+
+    for (int i = start; i < start + length; i++) {
+      h = (h ^ (b[i] & 0xff)) * 0x01000193;
+    }
+
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   *  Indicates whether a document's external id equals a key.
+   *  @param docid An internal document id.
+   *  @param key The UTF-8 bytes of an external id.
+   *  @return True if the document's external id is the key.
+   */
+  private boolean idEquals (int docid, byte[] key) {
+
+    int start = this.buffer.getInt (HEADER_SIZE + 4 * docid);
+    int length = this.buffer.getInt (HEADER_SIZE + 4 * (docid + 1)) - start;
+
+    if (length != key.length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (this.buffer.get (this.blobStart + start + i) != key[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Memory-map the sidecar file of an index, if there is a current
+   *  one.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader An IndexReader for the index.
+   *  @return The map, or null if there is no sidecar file or it was
+   *  built from a different commit of the index.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static DocidMap open (String indexPath, IndexReader reader)
+    throws IOException {
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+
+    if (! Files.isReadable (path)) {
+      return null;
+    }
+
+    ByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      if (channel.size () < HEADER_SIZE) {
+        return null;
+      }
+
+      buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    if ((buffer.getInt (0) != MAGIC) ||
+        (buffer.getInt (4) != VERSION) ||
+        (buffer.getInt (8) != reader.maxDoc ()) ||
+        (! Sidecar.isCurrent (buffer, 16, reader))) {
+      return null;
+    }
+
+    return new DocidMap (buffer);
+  }
+
+  /**
+   *  Build the sidecar file of an index.
+   *  @param args The only argument is the index path.
+   *  @throws IOException Error accessing the index or the sidecar.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length != 1) {
+      System.out.println ("Usage:  java DocidMap INDEX_PATH");
+      return;
+    }
+
+    try (IndexReader reader =
+           DirectoryReader.open (FSDirectory.open (Paths.get (args[0])))) {
+      build (args[0], reader);
+    }
+
+    System.out.println ("Wrote " + Sidecar.getPath (args[0], SUFFIX));
+  }
+}
@@ -0,0 +1,633 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A compressed set of internal docids that uses a hybrid of dense
+ *  and sparse containers, in the style of Roaring bitmaps.  The docid
+ *  space is divided into chunks of 65536 docids (the high 16 bits of
+ *  a docid).  Each chunk that has docids picks its own container:  a
+ *  sorted array of the low 16 bits of its docids if it has at most
+ *  4096 of them, otherwise a 65536-bit bitmap.  Either way, a chunk
+ *  takes at most 8 KB, or 2 bytes per docid, instead of 4 bytes per
+ *  docid in an int[].
+ *  <p>
+ *  Intersection and union are specialized for each pair of
+ *  containers:  arrays are merged (or galloped, when one is much
+ *  smaller), arrays are checked against bitmaps bit by bit, and
+ *  bitmaps are combined a word at a time.  Results switch containers
+ *  when their cardinalities cross the threshold.
+ *  </p><p>
+ *  DocidSets are immutable.
+ *  </p>
+ */
+public class DocidSet {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_WORDS = (1 << CHUNK_BITS) / 64;
+
+  /**
+   *  The largest chunk that uses an array container.  At this size,
+   *  an array and a bitmap take the same space.
+   */
+  public static final int MAX_ARRAY_SIZE = 4096;
+
+  /**
+   *  The chunks, in increasing key order.  Chunk i has either an
+   *  array or a bitmap; the other is null.
+   */
+  private int numChunks = 0;
+  private int[] keys;
+  private int[] cardinalities;
+  private char[][] arrays;
+  private long[][] bitmaps;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param capacity The number of chunks to allocate.
+   */
+  private DocidSet (int capacity) {
+    this.keys = new int[capacity];
+    this.cardinalities = new int[capacity];
+    this.arrays = new char[capacity][];
+    this.bitmaps = new long[capacity][];
+  }
+
+  /**
+   *  Build a set from docids.
+   *  @param docids Internal docids, in increasing order.
+   *  @param n The number of valid entries in docids.
+   */
+  public DocidSet (int[] docids, int n) {
+
+    this (countChunks (docids, n));
+
+    int i = 0;
+
+    while (i < n) {
+      int key = docids[i] >>> CHUNK_BITS;
+      int end = i;
+
+      while ((end < n) && ((docids[end] >>> CHUNK_BITS) == key)) {
+        end ++;
+      }
+
+      int card = end - i;
+
+      if (card <= MAX_ARRAY_SIZE) {
+        char[] array = new char[card];
+
+        for (int j = 0; j < card; j++) {
+          array[j] = (char) docids[i + j];
+        }
+
+        this.addChunk (key, array, null, card);
+      } else {
+        long[] bitmap = new long[CHUNK_WORDS];
+
+        for (int j = i; j < end; j++) {
+          int low = docids[j] & 0xffff;
+          bitmap[low >>> 6] |= 1L << low;
+        }
+
+        this.addChunk (key, null, bitmap, card);
+      }
+
+      i = end;
+    }
+  }
+
+  /**
+   *  Append a chunk, converting its container if its cardinality is
+   *  on the wrong side of MAX_ARRAY_SIZE.  Empty chunks are dropped.
+   *  @param key The chunk's key.
+   *  @param array The chunk's array, or null.
+   *  @param bitmap The chunk's bitmap, or null.
+   *  @param card The number of docids in the chunk.
+   */
+  private void addChunk (int key, char[] array, long[] bitmap, int card) {
+
+    if (card == 0) {
+      return;
+    }
+
+    if ((bitmap != null) && (card <= MAX_ARRAY_SIZE)) {
+      array = toArray (bitmap, card);
+      bitmap = null;
+    } else if ((array != null) && (card > MAX_ARRAY_SIZE)) {
+      bitmap = toBitmap (array, card);
+      array = null;
+    } else if ((array != null) && (array.length != card)) {
+      array = Arrays.copyOf (array, card);
+    }
+
+    int c = this.numChunks++;
+
+    this.keys[c] = key;
+    this.cardinalities[c] = card;
+    this.arrays[c] = array;
+    this.bitmaps[c] = bitmap;
+  }
+
+  /**
+   *  Intersect this set with another set.
+   *  @param other A set.
+   *  @return The docids that are in both sets.
+   */
+  public DocidSet and (DocidSet other) {
+
+    DocidSet result = new DocidSet (Math.min (this.numChunks, other.numChunks));
+    int i = 0;
+    int j = 0;
+
+    while ((i < this.numChunks) && (j < other.numChunks)) {
+      if (this.keys[i] < other.keys[j]) {
+        i ++;
+      } else if (this.keys[i] > other.keys[j]) {
+        j ++;
+      } else {
+        char[] a1 = this.arrays[i];
+        char[] a2 = other.arrays[j];
+        long[] b1 = this.bitmaps[i];
+        long[] b2 = other.bitmaps[j];
+
+        if ((a1 != null) && (a2 != null)) {
+          andArrays (result, this.keys[i],
+                     a1, this.cardinalities[i], a2, other.cardinalities[j]);
+        } else if (a1 != null) {
+          andArrayBitmap (result, this.keys[i], a1, this.cardinalities[i], b2);
+        } else if (a2 != null) {
+          andArrayBitmap (result, this.keys[i], a2, other.cardinalities[j], b1);
+        } else {
+          long[] bitmap = new long[CHUNK_WORDS];
+          int card = 0;
+
+          for (int w = 0; w < CHUNK_WORDS; w++) {
+            bitmap[w] = b1[w] & b2[w];
+            card += Long.bitCount (bitmap[w]);
+          }
+
+          result.addChunk (this.keys[i], null, bitmap, card);
+        }
+
+        i ++;
+        j ++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Intersect an array container with a bitmap container.
+   *  @param result The set to add the chunk to.
+   *  @param key The chunk's key.
+   *  @param array An array container.
+   *  @param card The size of the array container.
+   *  @param bitmap A bitmap container.
+   */
+  private static void andArrayBitmap (DocidSet result, int key,
+                                      char[] array, int card, long[] bitmap) {
+
+    char[] out = new char[card];
+    int n = 0;
+
+    for (int i = 0; i < card; i++) {
+      char low = array[i];
+
+      if ((bitmap[low >>> 6] & (1L << low)) != 0) {
+        out[n++] = low;
+      }
+    }
+
+    result.addChunk (key, out, null, n);
+  }
+
+  /**
+   *  Intersect two array containers.  Arrays of similar sizes are
+   *  merged.  When one array is much smaller, its values gallop
+   *  through the larger array instead.
+   *  @param result The set to add the chunk to.
+   *  @param key The chunk's key.
+   *  @param a1 An array container.
+   *  @param card1 The size of a1.
+   *  @param a2 An array container.
+   *  @param card2 The size of a2.
+   */
+  private static void andArrays (DocidSet result, int key,
+                                 char[] a1, int card1, char[] a2, int card2) {
+
+    if (card1 > card2) {
+      andArrays (result, key, a2, card2, a1, card1);
+      return;
+    }
+
+    char[] out = new char[card1];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+
+    if (card2 > 32 * card1) {
+      for (i = 0; (i < card1) && (j < card2); i++) {
+        j = gallop (a2, j, card2, a1[i]);
+
+        if ((j < card2) && (a2[j] == a1[i])) {
+          out[n++] = a1[i];
+        }
+      }
+    } else {
+      while ((i < card1) && (j < card2)) {
+        if (a1[i] < a2[j]) {
+          i ++;
+        } else if (a1[i] > a2[j]) {
+          j ++;
+        } else {
+          out[n++] = a1[i];
+          i ++;
+          j ++;
+        }
+      }
+    }
+
+    result.addChunk (key, out, null, n);
+  }
+
+  /**
+   *  Get the number of docids in the set.
+   *  @return The cardinality.
+   */
+  public int cardinality () {
+
+    int card = 0;
+
+    for (int c = 0; c < this.numChunks; c++) {
+      card += this.cardinalities[c];
+    }
+
+    return card;
+  }
+
+  /**
+   *  Indicates whether the set contains a docid.
+   *  @param docid An internal docid.
+   *  @return True if the docid is in the set.
+   */
+  public boolean contains (int docid) {
+
+    int c = Arrays.binarySearch (this.keys, 0, this.numChunks, docid >>> CHUNK_BITS);
+
+    if (c < 0) {
+      return false;
+    }
+
+    int low = docid & 0xffff;
+
+    if (this.bitmaps[c] != null) {
+      return ((this.bitmaps[c][low >>> 6] & (1L << low)) != 0);
+    }
+
+    return (Arrays.binarySearch (this.arrays[c], 0, this.cardinalities[c], (char) low) >= 0);
+  }
+
+  /**
+   *  Count the chunks of an array of docids.
+   *  @param docids Internal docids, in increasing order.
+   *  @param n The number of valid entries in docids.
+   *  @return The number of distinct chunk keys.
+   */
+  private static int countChunks (int[] docids, int n) {
+
+    int count = 0;
+    int key = -1;
+
+    for (int i = 0; i < n; i++) {
+      if ((docids[i] >>> CHUNK_BITS) != key) {
+        key = docids[i] >>> CHUNK_BITS;
+        count ++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   *  Find the first position in a sorted array that is >= a value,
+   *  by galloping:  probe positions from, from+1, from+3, from+7, ...
+   *  until the value is passed, then binary search.
+   *  @param a A sorted array.
+   *  @param from The first position to consider.
+   *  @param to The end of the valid entries.
+   *  @param value The value to find.
+   *  @return The position, or to if every entry is smaller.
+   */
+  private static int gallop (char[] a, int from, int to, char value) {
+
+    int step = 1;
+    int lo = from;
+    int hi = from;
+
+    while ((hi < to) && (a[hi] < value)) {
+      lo = hi + 1;
+      hi = from + step;
+      step <<= 1;
+    }
+
+    hi = Math.min (hi, to);
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Get the number of chunks that use array containers.
+   *  @return The number of array containers.
+   */
+  public int getNumArrays () {
+
+    int count = 0;
+
+    for (int c = 0; c < this.numChunks; c++) {
+      if (this.arrays[c] != null) {
+        count ++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   *  Get the number of chunks that use bitmap containers.
+   *  @return The number of bitmap containers.
+   */
+  public int getNumBitmaps () {
+    return this.numChunks - this.getNumArrays ();
+  }
+
+  /**
+   *  Get the number of chunks that have docids.
+   *  @return The number of chunks.
+   */
+  public int getNumChunks () {
+    return this.numChunks;
+  }
+
+  /**
+   *  Get the approximate size of the containers.
+   *  @return The size in bytes.
+   */
+  public long getSizeInBytes () {
+
+    long size = 0;
+
+    for (int c = 0; c < this.numChunks; c++) {
+      size += 8;				// Key and cardinality
+      size += (this.arrays[c] != null) ?
+        2L * this.arrays[c].length : 8L * CHUNK_WORDS;
+    }
+
+    return size;
+  }
+
+  /**
+   *  Get a description of each chunk's container.
+   *  @return One line per chunk:  the chunk's first docid, its
+   *  container type, and its cardinality.
+   */
+  public String getChunkStats () {
+
+    StringBuilder stats = new StringBuilder ();
+
+    for (int c = 0; c < this.numChunks; c++) {
+      stats.append ("\tchunk ").append (this.keys[c] << CHUNK_BITS)
+        .append (":\t").append ((this.arrays[c] != null) ? "array" : "bitmap")
+        .append ("\t").append (this.cardinalities[c]).append ("\n");
+    }
+
+    return stats.toString ();
+  }
+
+  /**
+   *  Get a summary of the set's containers.
+   *  @return The summary.
+   */
+  public String getStats () {
+    int card = this.cardinality ();
+
+    return ("chunks=" + this.numChunks +
+            " arrays=" + this.getNumArrays () +
+            " bitmaps=" + this.getNumBitmaps () +
+            " docids=" + card +
+            " bytes=" + this.getSizeInBytes () +
+            " (int[] bytes=" + (4L * card) + ")");
+  }
+
+  /**
+   *  Unite this set with another set.
+   *  @param other A set.
+   *  @return The docids that are in either set.
+   */
+  public DocidSet or (DocidSet other) {
+
+    DocidSet result = new DocidSet (this.numChunks + other.numChunks);
+    int i = 0;
+    int j = 0;
+
+    while ((i < this.numChunks) || (j < other.numChunks)) {
+      if ((j >= other.numChunks) ||
+          ((i < this.numChunks) && (this.keys[i] < other.keys[j]))) {
+        result.addChunk (this.keys[i], this.arrays[i], this.bitmaps[i],
+                         this.cardinalities[i]);
+        i ++;
+      } else if ((i >= this.numChunks) || (this.keys[i] > other.keys[j])) {
+        result.addChunk (other.keys[j], other.arrays[j], other.bitmaps[j],
+                         other.cardinalities[j]);
+        j ++;
+      } else {
+        char[] a1 = this.arrays[i];
+        char[] a2 = other.arrays[j];
+        long[] b1 = this.bitmaps[i];
+        long[] b2 = other.bitmaps[j];
+
+        if ((a1 != null) && (a2 != null)) {
+          orArrays (result, this.keys[i],
+                    a1, this.cardinalities[i], a2, other.cardinalities[j]);
+        } else if (a1 != null) {
+          orArrayBitmap (result, this.keys[i], a1, this.cardinalities[i],
+                         b2, other.cardinalities[j]);
+        } else if (a2 != null) {
+          orArrayBitmap (result, this.keys[i], a2, other.cardinalities[j],
+                         b1, this.cardinalities[i]);
+        } else {
+          long[] bitmap = new long[CHUNK_WORDS];
+          int card = 0;
+
+          for (int w = 0; w < CHUNK_WORDS; w++) {
+            bitmap[w] = b1[w] | b2[w];
+            card += Long.bitCount (bitmap[w]);
+          }
+
+          result.addChunk (this.keys[i], null, bitmap, card);
+        }
+
+        i ++;
+        j ++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Unite an array container with a bitmap container.
+   *  @param result The set to add the chunk to.
+   *  @param key The chunk's key.
+   *  @param array An array container.
+   *  @param card The size of the array container.
+   *  @param bitmap A bitmap container.
+   *  @param bitmapCard The cardinality of the bitmap container.
+   */
+  private static void orArrayBitmap (DocidSet result, int key,
+                                     char[] array, int card,
+                                     long[] bitmap, int bitmapCard) {
+
+    long[] out = bitmap.clone ();
+
+    for (int i = 0; i < card; i++) {
+      char low = array[i];
+      long bit = 1L << low;
+
+      if ((out[low >>> 6] & bit) == 0) {
+        out[low >>> 6] |= bit;
+        bitmapCard ++;
+      }
+    }
+
+    result.addChunk (key, null, out, bitmapCard);
+  }
+
+  /**
+   *  Unite two array containers.  The result becomes a bitmap if it
+   *  has more than MAX_ARRAY_SIZE docids.
+   *  @param result The set to add the chunk to.
+   *  @param key The chunk's key.
+   *  @param a1 An array container.
+   *  @param card1 The size of a1.
+   *  @param a2 An array container.
+   *  @param card2 The size of a2.
+   */
+  private static void orArrays (DocidSet result, int key,
+                                char[] a1, int card1, char[] a2, int card2) {
+
+    char[] out = new char[card1 + card2];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+
+    while ((i < card1) && (j < card2)) {
+      if (a1[i] < a2[j]) {
+        out[n++] = a1[i++];
+      } else if (a1[i] > a2[j]) {
+        out[n++] = a2[j++];
+      } else {
+        out[n++] = a1[i++];
+        j ++;
+      }
+    }
+
+    while (i < card1) {
+      out[n++] = a1[i++];
+    }
+
+    while (j < card2) {
+      out[n++] = a2[j++];
+    }
+
+    result.addChunk (key, out, null, n);
+  }
+
+  /**
+   *  Get the docids in the set.
+   *  @return The internal docids, in increasing order.
+   */
+  public int[] toArray () {
+
+    int[] docids = new int[this.cardinality ()];
+    int n = 0;
+
+    for (int c = 0; c < this.numChunks; c++) {
+      int base = this.keys[c] << CHUNK_BITS;
+
+      if (this.arrays[c] != null) {
+        for (int i = 0; i < this.cardinalities[c]; i++) {
+          docids[n++] = base | this.arrays[c][i];
+        }
+      } else {
+        long[] bitmap = this.bitmaps[c];
+
+        for (int w = 0; w < CHUNK_WORDS; w++) {
+          long word = bitmap[w];
+
+          while (word != 0) {
+            docids[n++] = base | (w << 6) | Long.numberOfTrailingZeros (word);
+            word &= word - 1;
+          }
+        }
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Convert a bitmap container to an array container.
+   *  @param bitmap A bitmap container.
+   *  @param card The cardinality of the bitmap.
+   *  @return The array container.
+   */
+  private static char[] toArray (long[] bitmap, int card) {
+
+    char[] array = new char[card];
+    int n = 0;
+
+    for (int w = 0; w < CHUNK_WORDS; w++) {
+      long word = bitmap[w];
+
+      while (word != 0) {
+        array[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros (word));
+        word &= word - 1;
+      }
+    }
+
+    return array;
+  }
+
+  /**
+   *  Convert an array container to a bitmap container.
+   *  @param array An array container.
+   *  @param card The size of the array container.
+   *  @return The bitmap container.
+   */
+  private static long[] toBitmap (char[] array, int card) {
+
+    long[] bitmap = new long[CHUNK_WORDS];
+
+    for (int i = 0; i < card; i++) {
+      bitmap[array[i] >>> 6] |= 1L << array[i];
+    }
+
+    return bitmap;
+  }
+}
@@ -4,8 +4,11 @@
 import java.io.*;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.lucene.codecs.StoredFieldsReader;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.*;
@@ -33,6 +36,66 @@ public class Idx {
 
   private static HashMap<String,IndexReader> openIndexReaders =
     new HashMap<String,IndexReader> ();
+
+  /**
+   *  The first docid of each leaf (segment) of the open indexes, and
+   *  of the current index.  See getLeafIndex.
+   */
+  private static HashMap<IndexReader,int[]> leafDocBases =
+    new HashMap<IndexReader,int[]> ();
+  private static int[] LEAFDOCBASES = null;
+
+  /**
+   *  Each thread's stored-field readers for the leaves of the open
+   *  indexes, opened on first use.  See getStoredFields.
+   */
+  private static final ThreadLocal<HashMap<IndexReader,StoredFieldsReader[]>>
+    storedFieldsReaders = ThreadLocal.withInitial (
+      () -> new HashMap<IndexReader,StoredFieldsReader[]> ());
+
+  /**
+   *  The docid maps of the open indexes that have one, and the map of
+   *  the current index (or null).  See DocidMap.
+   */
+  private static HashMap<IndexReader,DocidMap> docidMaps =
+    new HashMap<IndexReader,DocidMap> ();
+  private static DocidMap DOCIDMAP = null;
+
+  /**
+   *  The block-max indexes of the open indexes that have one, and the
+   *  block-max index of the current index (or null).  See
+   *  BlockMaxIndex.
+   */
+  private static HashMap<IndexReader,BlockMaxIndex> blockMaxIndexes =
+    new HashMap<IndexReader,BlockMaxIndex> ();
+  private static BlockMaxIndex BLOCKMAXINDEX = null;
+
+  /**
+   *  The impact-ordered indexes of the open indexes that have one, and
+   *  the impact-ordered index of the current index (or null).  See
+   *  ImpactIndex.
+   */
+  private static HashMap<IndexReader,ImpactIndex> impactIndexes =
+    new HashMap<IndexReader,ImpactIndex> ();
+  private static ImpactIndex IMPACTINDEX = null;
+
+  /**
+   *  Maximum term frequencies of the current index, keyed by
+   *  "field:term".  See getMaxTermFreq.
+   */
+  private static ConcurrentHashMap<String,Integer> maxTermFreqs =
+    new ConcurrentHashMap<String,Integer> ();
+
+  /**
+   *  Field lengths of the current index, keyed by field name, with
+   *  one entry per internal docid, and average field lengths.  See
+   *  getFieldLengths and getAvgFieldLength.
+   */
+  private static HashMap<String,int[]> fieldLengths =
+    new HashMap<String,int[]> ();
+  private static HashMap<String,Double> avgFieldLengths =
+    new HashMap<String,Double> ();
+
   private static String externalIdField = new String ("externalId");
 
   //  --------------- Methods ---------------------------------------
@@ -47,10 +110,51 @@ public class Idx {
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
 
-    Document d = Idx.INDEXREADER.document (docid);
+    Document d = Idx.getStoredFields (docid, attributeName);
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the average length of the specified field in the documents
+   *  that contain it.  The value is cached.
+   *  @param fieldName The field name.
+   *  @return The average field length, or 0 if no document contains
+   *  the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static synchronized double getAvgFieldLength (String fieldName)
+    throws IOException {
+
+    Double cached = avgFieldLengths.get (fieldName);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    int docCount = Idx.getDocCount (fieldName);
+    double avgLength = (docCount > 0) ?
+      (double) Idx.getSumOfFieldLengths (fieldName) / docCount : 0.0;
+
+    avgFieldLengths.put (fieldName, avgLength);
+    return avgLength;
+  }
+
+  /**
+   *  Get the block-max index of the current index.
+   *  @return The block-max index, or null if it hasn't been built.
+   */
+  public static BlockMaxIndex getBlockMaxIndex () {
+    return Idx.BLOCKMAXINDEX;
+  }
+
+  /**
+   *  Get the impact-ordered index of the current index.
+   *  @return The impact-ordered index, or null if it hasn't been built.
+   */
+  public static ImpactIndex getImpactIndex () {
+    return Idx.IMPACTINDEX;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -59,7 +163,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return TermStats.getDocCount (fieldName);
   }
   
   
@@ -73,7 +177,7 @@ public class Idx {
    */
   public static long getDocFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.docFreq (new Term (fieldName, new BytesRef (term)));
+    return TermStats.getDf (fieldName, term);
   }
 
 
@@ -85,7 +189,11 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
+    if (Idx.DOCIDMAP != null) {
+      return Idx.DOCIDMAP.getExternalDocid (iid);
+    }
+
+    Document d = Idx.getStoredFields (iid, externalIdField);
     String eid = d.get(externalIdField);
     return eid;
   }
@@ -99,20 +207,48 @@ public class Idx {
    */
   public static long getFieldLength (String fieldName, int docid)
     throws IOException {
+    return Idx.getFieldLengths (fieldName)[docid];
+  }
+
+  /**
+   *  Get the lengths of the specified field in every document, indexed
+   *  by internal docid.  Lucene stores lengths as norms, which are
+   *  decoded one leaf at a time; the first request for a field decodes
+   *  all of its norms into a dense array, and later requests are
+   *  cached, so scoring a document is an array access.  The array
+   *  must not be modified.
+   *  @param fieldName Name of field to access lengths.
+   *  @return The field lengths, including stopword positions.  A
+   *  document without the field has length 0.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static synchronized int[] getFieldLengths (String fieldName)
+    throws IOException {
+
+    int[] lengths = fieldLengths.get (fieldName);
+
+    if (lengths != null) {
+      return lengths;
+    }
+
+    lengths = new int[Idx.INDEXREADER.maxDoc ()];
 
-    LeafReaderContext leafContext = getLeafReaderContext (Idx.INDEXREADER, docid);
-    int leafDocid = docid - leafContext.docBase;
-    LeafReader leafReader = leafContext.reader ();
-    NumericDocValues norms = leafReader.getNormValues (fieldName);
-    long fieldLength = 0;
-	    
-    if (norms != null) {
-      if (norms.advanceExact (leafDocid)) {
-	fieldLength = norms.longValue();
+    for (LeafReaderContext leafContext : Idx.INDEXREADER.leaves ()) {
+      NumericDocValues norms = leafContext.reader ().getNormValues (fieldName);
+
+      if (norms == null) {
+        continue;
+      }
+
+      int leafDocid;
+
+      while ((leafDocid = norms.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+        lengths[leafContext.docBase + leafDocid] = (int) norms.longValue ();
       }
     }
-	    
-    return fieldLength;
+
+    fieldLengths.put (fieldName, lengths);
+    return lengths;
   }
 
   /**
@@ -126,6 +262,15 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
+    if (Idx.DOCIDMAP != null) {
+      int internalId = Idx.DOCIDMAP.getInternalDocid (externalId);
+
+      if (internalId < 0)
+        throw new Exception ("External id " + externalId + " not found.");
+
+      return internalId;
+    }
+
     LeafReaderContext leafContext =
       getLeafReaderContext (Idx.INDEXREADER, externalId);
 
@@ -169,25 +314,206 @@ public class Idx {
   }
 
   /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
-   *  @param docid An internal document id
-   *  @return the LeafReaderContext that contains the document, or null
+   *  Get the leaf (segment) of the current index that contains the
+   *  specified document, by binary search of the leaves' first
+   *  docids (like Lucene's ReaderUtil.subIndex).  Empty leaves have
+   *  the same first docid as the next leaf; the search skips them.
+   *  @param docid An internal document id.
+   *  @return The index of the leaf in Idx.INDEXREADER.leaves ().  A
+   *  docid beyond the index is in the last leaf.
    */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, long docid) {
+  public static int getLeafIndex (int docid) {
 
-    LeafReader leafReader = null;
+    int[] docBases = Idx.LEAFDOCBASES;
+    int lo = 0;
+    int hi = docBases.length - 1;
 
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      leafReader = leafContext.reader();
-      int minDocid = leafContext.docBase;
-      int maxDocid = leafContext.docBase + leafReader.numDocs();
-      if ((docid >= minDocid) && (docid < maxDocid)) {
-	return leafContext;
-      };
-    };
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
 
-    return null;
+      if (docBases[mid] <= docid) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Get the first docid of each leaf of an index.
+   *  @param reader An IndexReader.
+   *  @return The leaves' first docids, in leaf order.
+   */
+  private static int[] getLeafDocBases (IndexReader reader) {
+
+    List<LeafReaderContext> leaves = reader.leaves ();
+    int[] docBases = new int[leaves.size ()];
+
+    for (int i = 0; i < docBases.length; i++) {
+      docBases[i] = leaves.get (i).docBase;
+    }
+
+    return docBases;
+  }
+
+  /**
+   *  Get the largest frequency of a term in any one field (e.g., the
+   *  most times that 'apple' occurs in a title field).  Lucene doesn't
+   *  store this statistic directly, so it is read from the
+   *  BlockMaxIndex if that has the term's blocks, and otherwise from
+   *  the impacts in the term's skip data in each segment (see
+   *  getMaxTermFreq (ImpactsEnum)).  Results are cached.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The maximum term frequency, or 0 if the term doesn't occur.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getMaxTermFreq (String fieldName, String term)
+    throws IOException {
+
+    String key = fieldName + ":" + term;
+    Integer cached = maxTermFreqs.get (key);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    BlockMaxIndex blockMaxIndex = Idx.BLOCKMAXINDEX;
+    int t = (blockMaxIndex != null) ? blockMaxIndex.findTerm (fieldName, term) : -1;
+    int maxTf = 0;
+
+    if (t >= 0) {
+      for (int b = blockMaxIndex.getFirstBlock (t); b < blockMaxIndex.getEndBlock (t); b++) {
+        maxTf = Math.max (maxTf, blockMaxIndex.getBlockMaxTf (b));
+      }
+    } else {
+      BytesRef bytes = new BytesRef (term);
+
+      for (LeafReaderContext leafContext : Idx.INDEXREADER.leaves ()) {
+        Terms terms = leafContext.reader ().terms (fieldName);
+
+        if (terms != null) {
+          TermsEnum termsEnum = terms.iterator ();
+
+          if (termsEnum.seekExact (bytes)) {
+            maxTf = Math.max (maxTf,
+                              getMaxTermFreq (termsEnum.impacts (PostingsEnum.FREQS)));
+          }
+        }
+      }
+    }
+
+    maxTermFreqs.put (key, maxTf);
+    return maxTf;
+  }
+
+  /**
+   *  Get the largest frequency of a term in one segment from the
+   *  impacts in its skip data.  The highest level of skip data that
+   *  covers a document bounds the tfs of a long run of postings, so
+   *  the list is covered in a few steps.  Postings are read only
+   *  where there is no skip data:  lists that fit in one block, the
+   *  partial block at the end of a list, and runs whose impacts
+   *  haven't been loaded yet (Lucene reports them with an unbounded
+   *  frequency).
+   *  @param postings The term's postings in the segment.
+   *  @return The maximum term frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static int getMaxTermFreq (ImpactsEnum postings)
+    throws IOException {
+
+    int maxTf = 0;
+    int target = 0;
+    int docid = -1;
+
+    while (target != DocIdSetIterator.NO_MORE_DOCS) {
+
+      postings.advanceShallow (target);
+
+      //  Levels without skip data end at NO_MORE_DOCS.
+
+      Impacts impacts = postings.getImpacts ();
+      int level = impacts.numLevels () - 1;
+
+      while ((level >= 0) &&
+             (impacts.getDocIdUpTo (level) == DocIdSetIterator.NO_MORE_DOCS)) {
+        level --;
+      }
+
+      int upTo = DocIdSetIterator.NO_MORE_DOCS;
+      int runMaxTf = Integer.MAX_VALUE;
+
+      if (level >= 0) {
+        upTo = impacts.getDocIdUpTo (level);
+        runMaxTf = 0;
+
+        for (Impact impact : impacts.getImpacts (level)) {
+          runMaxTf = Math.max (runMaxTf, impact.freq);
+        }
+      }
+
+      if (runMaxTf == Integer.MAX_VALUE) {
+        if (docid < target) {
+          docid = postings.advance (target);
+        }
+
+        while ((docid <= upTo) && (docid != DocIdSetIterator.NO_MORE_DOCS)) {
+          maxTf = Math.max (maxTf, postings.freq ());
+          docid = postings.nextDoc ();
+        }
+      } else {
+        maxTf = Math.max (maxTf, runMaxTf);
+      }
+
+      target = (upTo == DocIdSetIterator.NO_MORE_DOCS) ? upTo : upTo + 1;
+    }
+
+    return maxTf;
+  }
+
+  /**
+   *  Get some stored fields of the specified document.  The leaf is
+   *  found by binary search, and the thread's stored-field reader for
+   *  the leaf is reused across calls.  The readers are Lucene merge
+   *  instances, which keep the last decompressed block, so a sequence
+   *  of lookups in increasing docid order (e.g., ScoreList.resolve)
+   *  decompresses each block once.
+   *  @param docid The internal docid in the Lucene index.
+   *  @param fieldName The stored field to load.
+   *  @return A document that contains only the requested field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static Document getStoredFields (int docid, String fieldName)
+    throws IOException {
+
+    int leaf = Idx.getLeafIndex (docid);
+    LeafReaderContext leafContext = Idx.INDEXREADER.leaves ().get (leaf);
+    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor (fieldName);
+
+    HashMap<IndexReader,StoredFieldsReader[]> threadReaders =
+      storedFieldsReaders.get ();
+    StoredFieldsReader[] readers = threadReaders.get (Idx.INDEXREADER);
+
+    if (readers == null) {
+      readers = new StoredFieldsReader[Idx.LEAFDOCBASES.length];
+      threadReaders.put (Idx.INDEXREADER, readers);
+    }
+
+    if ((readers[leaf] == null) && (leafContext.reader () instanceof CodecReader)) {
+      readers[leaf] =
+        ((CodecReader) leafContext.reader ()).getFieldsReader ().getMergeInstance ();
+    }
+
+    if (readers[leaf] != null) {
+      readers[leaf].visitDocument (docid - leafContext.docBase, visitor);
+    } else {
+      leafContext.reader ().document (docid - leafContext.docBase, visitor);
+    }
+
+    return visitor.getDocument ();
   }
 
   /**
@@ -196,7 +522,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return TermStats.getNumDocs ();
   }
 
   /**
@@ -209,7 +535,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return TermStats.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -224,7 +550,7 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return TermStats.getCtf (fieldName, term);
   }
 
 
@@ -251,11 +577,37 @@ public class Idx {
     //  Keep track of the open indexes.
 
     openIndexReaders.put (indexPath, indexReader);
+    leafDocBases.put (indexReader, getLeafDocBases (indexReader));
+
+    //  Use the index's sidecar files if they have been built.
+
+    DocidMap docidMap = DocidMap.open (indexPath, indexReader);
+
+    if (docidMap != null) {
+      docidMaps.put (indexReader, docidMap);
+    }
+
+    BlockMaxIndex blockMaxIndex = BlockMaxIndex.open (indexPath, indexReader);
+
+    if (blockMaxIndex != null) {
+      blockMaxIndexes.put (indexReader, blockMaxIndex);
+    }
+
+    ImpactIndex impactIndex = ImpactIndex.open (indexPath, indexReader);
+
+    if (impactIndex != null) {
+      impactIndexes.put (indexReader, impactIndex);
+    }
 
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
+      Idx.LEAFDOCBASES = leafDocBases.get (indexReader);
+      Idx.DOCIDMAP = docidMap;
+      Idx.BLOCKMAXINDEX = blockMaxIndex;
+      Idx.IMPACTINDEX = impactIndex;
+      TermStats.open (indexPath, indexReader);
     }
   }
 
@@ -274,6 +626,33 @@ public class Idx {
         "An index must be open before it can be the current index");
     }
 
+    boolean isChanged = (Idx.INDEXREADER != indexReader);
+
+    if (isChanged) {
+      PostingsCache.clear ();
+      TermStats.clear ();
+
+      synchronized (Idx.class) {
+        maxTermFreqs.clear ();
+        fieldLengths.clear ();
+        avgFieldLengths.clear ();
+      }
+    }
+
     Idx.INDEXREADER = indexReader;
+    Idx.LEAFDOCBASES = leafDocBases.get (indexReader);
+    Idx.DOCIDMAP = docidMaps.get (indexReader);
+    Idx.BLOCKMAXINDEX = blockMaxIndexes.get (indexReader);
+    Idx.IMPACTINDEX = impactIndexes.get (indexReader);
+
+    //  Start the new index's statistics cache from its sidecar.
+
+    if (isChanged) {
+      try {
+        TermStats.open (indexPath, indexReader);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
   }
 }
@@ -0,0 +1,481 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A memory-mapped impact-ordered index, used by SaatEvaluator.  The
+ *  inverted list of each (term, field) is reorganized into segments
+ *  of postings that have the same quantized impact (the document's
+ *  score contribution for the term), from the highest impact to the
+ *  lowest; within a segment, docids are in increasing order.  An
+ *  evaluator that reads the highest-impact segments first finds the
+ *  best documents early, so it can stop after a budget of postings.
+ *  <p>
+ *  Impacts are 8-bit.  The impact of a posting is its ranked Boolean
+ *  term score, tf, so impacts are exact for tf up to 255.
+ *  </p><p>
+ *  The index is a sidecar file next to the index directory (e.g.,
+ *  index.impacts next to index/).  It is built once per index by
+ *  running this class, which reads the inverted lists via Idx and
+ *  InvList:
+ *  </p><pre>
+ *    java ImpactIndex INDEX_PATH [FIELD ...]
+ *  </pre><p>
+ *  By default, every field that has term frequencies is included.
+ *  The file contains a header; the start of each term's segments and
+ *  of each term's key; an open addressing hash table of term numbers,
+ *  keyed by a hash of "field:term"; the impact and first posting of
+ *  each segment; the docids; the UTF-8 "field:term" keys; and the
+ *  names of the fields that were included.  A sidecar that was built
+ *  from a different commit of the index is ignored.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51454958;		// "QEIX"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 48;
+  private static final String SUFFIX = ".impacts";
+
+  /**
+   *  The largest quantized impact.
+   */
+  public static final int MAX_IMPACT = 255;
+
+  private final ByteBuffer buffer;
+  private final int numTerms;
+  private final int tableSize;
+  private final int segStartsStart;
+  private final int keyOffsetsStart;
+  private final int tableStart;
+  private final int segImpactsStart;
+  private final int segPostingsStart;
+  private final int docidsStart;
+  private final int keysStart;
+  private final Set<String> fields = new HashSet<String> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param buffer The contents of a sidecar file.
+   */
+  private ImpactIndex (ByteBuffer buffer) {
+
+    this.buffer = buffer;
+    this.numTerms = buffer.getInt (8);
+    this.tableSize = buffer.getInt (12);
+
+    int numSegments = buffer.getInt (16);
+    int numPostings = buffer.getInt (20);
+    int keysLength = buffer.getInt (24);
+
+    this.segStartsStart = HEADER_SIZE;
+    this.keyOffsetsStart = this.segStartsStart + 4 * (this.numTerms + 1);
+    this.tableStart = this.keyOffsetsStart + 4 * (this.numTerms + 1);
+    this.segImpactsStart = this.tableStart + 4 * this.tableSize;
+    this.segPostingsStart = this.segImpactsStart + 4 * numSegments;
+    this.docidsStart = this.segPostingsStart + 4 * (numSegments + 1);
+    this.keysStart = this.docidsStart + 4 * numPostings;
+
+    //  The field names follow the keys.
+
+    int p = this.keysStart + keysLength;
+    int numFields = buffer.getInt (p);
+
+    p += 4;
+
+    for (int f = 0; f < numFields; f++) {
+      byte[] name = new byte[buffer.getInt (p)];
+
+      for (int i = 0; i < name.length; i++) {
+        name[i] = buffer.get (p + 4 + i);
+      }
+
+      this.fields.add (new String (name, StandardCharsets.UTF_8));
+      p += 4 + name.length;
+    }
+  }
+
+  /**
+   *  Build the sidecar file of the current index.  Existing sidecars
+   *  are replaced.
+   *  @param indexPath The directory that contains the current index.
+   *  @param fieldNames The fields to include, or null for every field
+   *  that has term frequencies.
+   *  @throws IOException Error accessing the index or the sidecar.
+   */
+  public static void build (String indexPath, Collection<String> fieldNames)
+    throws IOException {
+
+    IndexReader reader = Idx.INDEXREADER;
+
+    if (fieldNames == null) {
+      fieldNames = new ArrayList<String> ();
+
+      for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos (reader)) {
+        if (fieldInfo.getIndexOptions ().compareTo (IndexOptions.DOCS_AND_FREQS) >= 0) {
+          fieldNames.add (fieldInfo.name);
+        }
+      }
+    }
+
+    ByteArrayOutputStream keys = new ByteArrayOutputStream ();
+    int[] keyOffsets = new int[1024];
+    int[] segStarts = new int[1024];
+    int[] segImpacts = new int[1024];
+    int[] segPostings = new int[1024];
+    int[] docids = new int[1024];
+    int numTerms = 0;
+    int numSegments = 0;
+    int numPostings = 0;
+
+    for (String field : fieldNames) {
+      Terms terms = MultiTerms.getTerms (reader, field);
+
+      if (terms == null) {
+        continue;
+      }
+
+      TermsEnum termsEnum = terms.iterator ();
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+
+        String termString = term.utf8ToString ();
+        InvList invList = new InvList (termString, field);
+
+        if (invList.df == 0) {
+          continue;
+        }
+
+        if (numTerms + 2 > keyOffsets.length) {
+          keyOffsets = Arrays.copyOf (keyOffsets, 2 * keyOffsets.length);
+          segStarts = Arrays.copyOf (segStarts, 2 * segStarts.length);
+        }
+
+        byte[] key = (field + ":" + termString).getBytes (StandardCharsets.UTF_8);
+
+        keys.write (key, 0, key.length);
+        segStarts[numTerms] = numSegments;
+        numTerms ++;
+        keyOffsets[numTerms] = keys.size ();
+
+        //  Bucket the postings by impact, then write the buckets from
+        //  the highest impact to the lowest.  Postings are read in
+        //  docid order, so each bucket is in docid order.
+
+        int[] counts = new int[MAX_IMPACT + 2];
+
+        for (int i = 0; i < invList.df; i++) {
+          counts[quantize (invList.tfs[i]) + 1] ++;
+        }
+
+        for (int impact = 1; impact <= MAX_IMPACT + 1; impact++) {
+          counts[impact] += counts[impact - 1];
+        }
+
+        if (numPostings + invList.df > docids.length) {
+          docids = Arrays.copyOf (docids, Math.max (numPostings + invList.df, 2 * docids.length));
+        }
+
+        int[] sorted = new int[invList.df];
+        int[] next = Arrays.copyOf (counts, MAX_IMPACT + 1);
+
+        for (int i = 0; i < invList.df; i++) {
+          sorted[next[quantize (invList.tfs[i])]++] = invList.docids[i];
+        }
+
+        for (int impact = MAX_IMPACT; impact > 0; impact--) {
+          int count = counts[impact + 1] - counts[impact];
+
+          if (count == 0) {
+            continue;
+          }
+
+          if (numSegments + 2 > segImpacts.length) {
+            segImpacts = Arrays.copyOf (segImpacts, 2 * segImpacts.length);
+            segPostings = Arrays.copyOf (segPostings, 2 * segPostings.length);
+          }
+
+          segImpacts[numSegments] = impact;
+          segPostings[numSegments] = numPostings;
+          numSegments ++;
+
+          System.arraycopy (sorted, counts[impact], docids, numPostings, count);
+          numPostings += count;
+        }
+      }
+    }
+
+    segStarts[numTerms] = numSegments;
+    segPostings[numSegments] = numPostings;
+
+    //  The hash table is at most half full.  Empty slots are -1.
+
+    byte[] keyBytes = keys.toByteArray ();
+    int tableSize = Integer.highestOneBit (Math.max (2 * numTerms, 1)) * 2;
+    int[] table = new int[tableSize];
+
+    Arrays.fill (table, -1);
+
+    for (int t = 0; t < numTerms; t++) {
+      int slot = DocidMap.hash (keyBytes, keyOffsets[t], keyOffsets[t + 1] - keyOffsets[t]) &
+                 (tableSize - 1);
+
+      while (table[slot] != -1) {
+        slot = (slot + 1) & (tableSize - 1);
+      }
+
+      table[slot] = t;
+    }
+
+    //  Write a temporary file, then move it into place, so that a
+    //  partially written sidecar is never opened.
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out =
+           new DataOutputStream (
+             new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeInt (numTerms);
+      out.writeInt (tableSize);
+      out.writeInt (numSegments);
+      out.writeInt (numPostings);
+      out.writeInt (keyBytes.length);
+      out.writeInt (0);				// Unused
+      out.write (Sidecar.getIndexId (reader));
+
+      for (int t = 0; t <= numTerms; t++) {
+        out.writeInt (segStarts[t]);
+      }
+
+      for (int t = 0; t <= numTerms; t++) {
+        out.writeInt (keyOffsets[t]);
+      }
+
+      for (int t : table) {
+        out.writeInt (t);
+      }
+
+      for (int s = 0; s < numSegments; s++) {
+        out.writeInt (segImpacts[s]);
+      }
+
+      for (int s = 0; s <= numSegments; s++) {
+        out.writeInt (segPostings[s]);
+      }
+
+      for (int i = 0; i < numPostings; i++) {
+        out.writeInt (docids[i]);
+      }
+
+      out.write (keyBytes);
+      out.writeInt (fieldNames.size ());
+
+      for (String field : fieldNames) {
+        byte[] name = field.getBytes (StandardCharsets.UTF_8);
+
+        out.writeInt (name.length);
+        out.write (name);
+      }
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Find a term.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed term string.
+   *  @return The term number, or -1 if the term doesn't occur in the
+   *  field.
+   */
+  public int findTerm (String field, String term) {
+
+    byte[] key = (field + ":" + term).getBytes (StandardCharsets.UTF_8);
+    int mask = this.tableSize - 1;
+    int slot = DocidMap.hash (key, 0, key.length) & mask;
+
+    while (true) {
+      int t = this.buffer.getInt (this.tableStart + 4 * slot);
+
+      if (t == -1) {
+        return -1;
+      }
+
+      if (this.keyEquals (t, key)) {
+        return t;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   *  Get a docid.
+   *  @param p A posting number; see getSegmentStart.
+   *  @return The internal docid of the posting.
+   */
+  public int getDocid (int p) {
+    return this.buffer.getInt (this.docidsStart + 4 * p);
+  }
+
+  /**
+   *  Get the segment after the last segment of a term.
+   *  @param t A term number.
+   *  @return The end of the term's segments.
+   */
+  public int getEndSegment (int t) {
+    return this.buffer.getInt (this.segStartsStart + 4 * (t + 1));
+  }
+
+  /**
+   *  Get the first segment of a term.  A term's segments are in order
+   *  of decreasing impact.
+   *  @param t A term number.
+   *  @return The first segment of the term.
+   */
+  public int getFirstSegment (int t) {
+    return this.buffer.getInt (this.segStartsStart + 4 * t);
+  }
+
+  /**
+   *  Get the posting after the last posting of a segment.
+   *  @param s A segment.
+   *  @return The end of the segment's postings.
+   */
+  public int getSegmentEnd (int s) {
+    return this.buffer.getInt (this.segPostingsStart + 4 * (s + 1));
+  }
+
+  /**
+   *  Get the impact of the postings in a segment.
+   *  @param s A segment.
+   *  @return The quantized impact.
+   */
+  public int getSegmentImpact (int s) {
+    return this.buffer.getInt (this.segImpactsStart + 4 * s);
+  }
+
+  /**
+   *  Get the first posting of a segment.
+   *  @param s A segment.
+   *  @return The first posting of the segment; see getDocid.
+   */
+  public int getSegmentStart (int s) {
+    return this.buffer.getInt (this.segPostingsStart + 4 * s);
+  }
+
+  /**
+   *  Indicates whether the index includes a field.
+   *  @param field The field name.
+   *  @return True if the field's terms are in the index.
+   */
+  public boolean hasField (String field) {
+    return this.fields.contains (field);
+  }
+
+  /**
+   *  Indicates whether a term's key equals a key.
+   *  @param t A term number.
+   *  @param key The UTF-8 bytes of a "field:term" key.
+   *  @return True if the term's key is the key.
+   */
+  private boolean keyEquals (int t, byte[] key) {
+
+    int start = this.buffer.getInt (this.keyOffsetsStart + 4 * t);
+    int length = this.buffer.getInt (this.keyOffsetsStart + 4 * (t + 1)) - start;
+
+    if (length != key.length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (this.buffer.get (this.keysStart + start + i) != key[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Memory-map the sidecar file of an index, if there is a current
+   *  one.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader An IndexReader for the index.
+   *  @return The impact index, or null if there is no sidecar file or
+   *  it was built from a different commit of the index.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static ImpactIndex open (String indexPath, IndexReader reader)
+    throws IOException {
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+
+    if (! Files.isReadable (path)) {
+      return null;
+    }
+
+    ByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      if (channel.size () < HEADER_SIZE) {
+        return null;
+      }
+
+      buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    if ((buffer.getInt (0) != MAGIC) ||
+        (buffer.getInt (4) != VERSION) ||
+        (! Sidecar.isCurrent (buffer, 32, reader))) {
+      return null;
+    }
+
+    return new ImpactIndex (buffer);
+  }
+
+  /**
+   *  Quantize a term frequency to an impact.
+   *  @param tf A term frequency.
+   *  @return The impact, from 1 to MAX_IMPACT.
+   */
+  private static int quantize (int tf) {
+    return Math.max (1, Math.min (tf, MAX_IMPACT));
+  }
+
+  /**
+   *  Build the sidecar file of an index.
+   *  @param args The index path, and optionally the fields to include.
+   *  @throws IOException Error accessing the index or the sidecar.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length < 1) {
+      System.out.println ("Usage:  java ImpactIndex INDEX_PATH [FIELD ...]");
+      return;
+    }
+
+    Idx.open (args[0]);
+    build (args[0],
+           (args.length > 1) ?
+             Arrays.asList (Arrays.copyOfRange (args, 1, args.length)) : null);
+
+    System.out.println ("Wrote " + Sidecar.getPath (args[0], SUFFIX));
+  }
+}
@@ -45,6 +45,9 @@ public class InspectIndex {
 	"    -list-postings-sample TERM FIELD\n" +
 	"\t\t\tdisplay the first few posting list entries for\n" +
 	"\t\t\tterm TERM in field FIELD\n" +
+	"    -list-postings-stats TERM FIELD\n" +
+	"\t\t\tdisplay the dense/sparse docid containers that\n" +
+	"\t\t\tare chosen for term TERM in field FIELD\n" +
 	"    -list-stats\n" +
 	"\t\t\tdisplay corpus statistics\n" +
 	"    -list-terms FIELD" +
@@ -283,6 +286,16 @@ public class InspectIndex {
 		listPostings (reader, args[i+1], args [i+2], 5);
 		i += 2;
 
+	    } else if ("-list-postings-stats".equals(args[i])) {
+
+		if ((i+2) >= args.length) {
+		    System.out.println (usage);
+		    break;
+		};
+
+		listPostingsStats (reader, args[i+1], args [i+2]);
+		i += 2;
+
 	    } else if ("-list-stats".equals(args[i])) {
 
 		System.out.println ("Corpus statistics:");
@@ -517,6 +530,53 @@ public class InspectIndex {
 	return;
     }
 
+    /**
+     *  Displays the docid containers (see DocidSet) that are chosen
+     *  for the postings of a term:  a sorted array for each sparse
+     *  chunk of 65536 docids, and a bitmap for each dense chunk.
+     *  @param reader An IndexReader
+     *  @param termString A term
+     *  @param field A field
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    static void listPostingsStats (IndexReader reader, String termString,
+				   String field) throws IOException  {
+
+	System.out.println ("\nPostings statistics:  " + termString + " " + field);
+
+	BytesRef termBytes = new BytesRef (termString);
+	Term term = new Term (field, termBytes);
+	int df = reader.docFreq (term);
+
+	System.out.println ("\tdf:  " + df);
+
+	if (df < 1)
+	    return;
+
+	//  Read the docids from each segment.
+
+	int[] docids = new int[df];
+	int n = 0;
+
+	for (LeafReaderContext context : reader.leaves()) {
+
+	    PostingsEnum postings =
+		context.reader().postings (term, PostingsEnum.NONE);
+
+	    if (postings == null)
+		continue;
+
+	    while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+		docids[n++] = context.docBase + postings.docID();
+	    };
+	}
+
+	DocidSet docidSet = new DocidSet (docids, n);
+
+	System.out.println ("\t" + docidSet.getStats ());
+	System.out.print (docidSet.getChunkStats ());
+    }
+
     /**
      *  Displays the term dictionary for a field.
      *  @param reader An IndexReader
@@ -36,50 +36,35 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal document ids of the postings, in ascending order.
+   *  Only the first df entries are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  public int[] docids = new int[0];
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequencies, parallel to docids.  Only the first df entries
+   *  are valid.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  public int[] tfs = new int[0];
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The locations of the n'th posting are stored in
+   *  positions[positionOffsets[n]] ... positions[positionOffsets[n+1]-1].
+   *  Only the first df+1 entries are valid.
+   */
+  public int[] positionOffsets = new int[1];
 
-    public DocPosting(int docid, int... locations) {
-      this.docid = docid;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The locations of all postings, stored end-to-end in a single
+   *  array.  Only the first ctf entries are valid.
+   */
+  public int[] positions = new int[0];
 
-    public DocPosting(int docid, List<Integer> locations) {
-      this.docid = docid;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The docids as a hybrid dense/sparse set, or null until
+   *  getDocidSet needs it.
+   */
+  private DocidSet docidSet = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -114,9 +99,21 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int expectedDf = Idx.INDEXREADER.docFreq(term);
+
+    if (expectedDf < 1)
       return;
 
+    //  The df and ctf are known in advance, so the arrays can be
+    //  allocated once at their final size.
+
+    long expectedCtf = Idx.INDEXREADER.totalTermFreq(term);
+
+    this.docids = new int[expectedDf];
+    this.tfs = new int[expectedDf];
+    this.positionOffsets = new int[expectedDf + 1];
+    this.positions = new int[(int) Math.max (expectedCtf, 0)];
+
     //  Lucene indexes have segments, so postings must be retrieved
     //  from each segment.  Some segments may have no postings.
 
@@ -134,16 +131,18 @@ public class InvList {
 
 	while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
-	  int docid = context.docBase + postings.docID();
 	  int tf = postings.freq();
-	  int[] positions = new int[tf];
+
+	  this.ensureCapacity (this.df + 1, this.ctf + tf);
+	  this.docids[this.df] = context.docBase + postings.docID();
+	  this.tfs[this.df] = tf;
 
 	  for (int j = 0; j < tf; j++)
-	    positions[j] = postings.nextPosition();
+	    this.positions[this.ctf + j] = postings.nextPosition();
 
-	  this.postings.add(new DocPosting(docid, positions));
 	  this.df++;
 	  this.ctf += tf;
+	  this.positionOffsets[this.df] = this.ctf;
 	}
       }
     }
@@ -153,33 +152,86 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array of positions where the term occurs.
+   *  @param tf The number of valid entries in locations.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
+  public boolean appendPosting (int docid, int[] locations, int tf) {
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.positionOffsets[this.df] = this.ctf;
+    this.docidSet = null;
     return true;
   }
 
+  /**
+   *  Grow the arrays, if necessary, so that they can hold at least
+   *  numPostings postings and numPositions positions.  Arrays grow
+   *  geometrically so that appends are amortized constant time.
+   *  @param numPostings The required number of postings.
+   *  @param numPositions The required number of positions.
+   */
+  private void ensureCapacity (int numPostings, int numPositions) {
+
+    if (numPostings > this.docids.length) {
+      int n = Math.max (numPostings, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, n + 1);
+    }
+
+    if (numPositions > this.positions.length) {
+      int n = Math.max (numPositions, 2 * this.positions.length);
+      this.positions = Arrays.copyOf (this.positions, n);
+    }
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the docids of the inverted list as a DocidSet, which picks a
+   *  dense (bitmap) or sparse (array) container for each chunk of
+   *  65536 docids.  It is faster and smaller than docids for
+   *  intersection and union of very frequent terms.  The set is built
+   *  on the first call.
+   *  @return The docids.
+   */
+  public DocidSet getDocidSet () {
+    if (this.docidSet == null) {
+      this.docidSet = new DocidSet (this.docids, this.df);
+    }
+
+    return this.docidSet;
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.positionOffsets[n] + j];
   }
 
   /**
@@ -188,7 +240,7 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
 
   /**
@@ -199,11 +251,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(this.getPosition (i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,508 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.PostingsEnum;
+
+/**
+ *  A process-wide cache of inverted lists, keyed by (term, field).
+ *  Query batches often repeat the same terms many times; the cache
+ *  avoids reading and decoding their postings from Lucene for every
+ *  query.
+ *  <p>
+ *  Inverted lists are stored in a compressed form:  docids and
+ *  positions are delta encoded, and all integers are variable-byte
+ *  encoded.  Docids, term frequencies, and positions are stored in
+ *  separate sections, so a caller that needs only docids (or docids
+ *  and tfs) decodes only those sections; see get.  A list's DocidSet
+ *  is built the first time that it is requested, and kept with the
+ *  list; see getDocidSet.
+ *  </p><p>
+ *  The cache has a memory budget (in bytes of compressed data and
+ *  DocidSets); when it is exceeded, least recently used lists are
+ *  evicted.  The cache is divided into stripes, each with its own
+ *  lock and LRU order, so that concurrent lookups of different terms
+ *  rarely contend.  Eviction visits the stripes round-robin, starting
+ *  after the stripe that just grew, so recency is approximate across
+ *  stripes.
+ *  </p><p>
+ *  The cache is disabled until setBudget is called with a positive
+ *  budget.
+ *  </p>
+ */
+public class PostingsCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int NUM_STRIPES = 16;
+
+  private static volatile long budget = 0;
+
+  private static volatile Stripe[] stripes = new Stripe[0];
+
+  private static final AtomicLong size = new AtomicLong ();
+  private static final AtomicLong hits = new AtomicLong ();
+  private static final AtomicLong misses = new AtomicLong ();
+  private static final AtomicLong evictions = new AtomicLong ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  One independently locked partition of the cache.  The
+   *  LinkedHashMap is in access order, so its first entry is the
+   *  least recently used.
+   */
+  private static class Stripe {
+    private final LinkedHashMap<String,Entry> lists =
+      new LinkedHashMap<String,Entry> (16, 0.75f, true);
+  }
+
+  /**
+   *  A cached inverted list.  The compressed sections never change;
+   *  docidSet is set once, while the stripe is locked.
+   */
+  private static class Entry {
+    private final int df;
+    private final int ctf;
+    private final byte[] docids;
+    private final byte[] tfs;
+    private final byte[] positions;
+    private DocidSet docidSet = null;
+
+    /**
+     *  @param df The document frequency.
+     *  @param ctf The collection term frequency.
+     *  @param docids The delta encoded docids.
+     *  @param tfs The term frequencies.
+     *  @param positions The delta encoded positions of each document.
+     */
+    private Entry (int df, int ctf, byte[] docids, byte[] tfs, byte[] positions) {
+      this.df = df;
+      this.ctf = ctf;
+      this.docids = docids;
+      this.tfs = tfs;
+      this.positions = positions;
+    }
+
+    /**
+     *  Get the number of bytes that the entry counts against the
+     *  budget.
+     *  @return The size in bytes.
+     */
+    private long getSize () {
+      return (this.docids.length + this.tfs.length + this.positions.length +
+              ((this.docidSet != null) ? this.docidSet.getSizeInBytes () : 0));
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Remove all inverted lists from the cache, e.g., because the
+   *  current index changed.  Statistics are not reset.
+   */
+  public static void clear () {
+    for (Stripe stripe : PostingsCache.stripes) {
+      synchronized (stripe) {
+        for (Entry entry : stripe.lists.values ()) {
+          size.addAndGet (- entry.getSize ());
+        }
+
+        stripe.lists.clear ();
+      }
+    }
+  }
+
+  /**
+   *  Get an inverted list, from the cache if possible, otherwise from
+   *  the index.  Each call returns a new InvList that the caller may
+   *  modify.  A cached list is decoded only as far as the caller
+   *  needs:  with PostingsEnum.NONE, tfs are 1 and there are no
+   *  positions; with PostingsEnum.FREQS, there are no positions.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param requiredPostings PostingsEnum.NONE (docids),
+   *  PostingsEnum.FREQS (docids and tfs), or PostingsEnum.POSITIONS
+   *  (docids, tfs, and positions).
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList get (String termString, String fieldString,
+                             int requiredPostings)
+    throws IOException {
+
+    Stripe[] stripes = PostingsCache.stripes;
+
+    if (stripes.length == 0) {
+      return new InvList (termString, fieldString);
+    }
+
+    Entry entry = getEntry (stripes, termString, fieldString);
+
+    if (entry != null) {
+      hits.incrementAndGet ();
+      return decode (entry, fieldString, requiredPostings);
+    }
+
+    //  Read the list outside of the lock so that a slow read doesn't
+    //  block other terms in the same stripe.
+
+    misses.incrementAndGet ();
+    InvList invList = new InvList (termString, fieldString);
+    put (stripes, termString, fieldString, encode (invList));
+    return invList;
+  }
+
+  /**
+   *  Get the docids of an inverted list as a DocidSet.  The set of a
+   *  cached list is built once and kept with the list, so later calls
+   *  return the same set; it counts against the budget.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The docids.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocidSet getDocidSet (String termString, String fieldString)
+    throws IOException {
+
+    Stripe[] stripes = PostingsCache.stripes;
+
+    if (stripes.length == 0) {
+      return new InvList (termString, fieldString).getDocidSet ();
+    }
+
+    Entry entry = getEntry (stripes, termString, fieldString);
+
+    if (entry == null) {
+      misses.incrementAndGet ();
+      InvList invList = new InvList (termString, fieldString);
+      entry = put (stripes, termString, fieldString, encode (invList));
+
+      if (entry == null) {
+        return invList.getDocidSet ();
+      }
+    } else {
+      hits.incrementAndGet ();
+    }
+
+    int stripeIndex = getStripeIndex (stripes, termString, fieldString);
+    Stripe stripe = stripes[stripeIndex];
+    DocidSet docidSet;
+
+    synchronized (stripe) {
+      docidSet = entry.docidSet;
+    }
+
+    if (docidSet != null) {
+      return docidSet;
+    }
+
+    //  Build the set outside of the lock.  If another thread built
+    //  one meanwhile, use that one.
+
+    InvList invList = decode (entry, fieldString, PostingsEnum.NONE);
+    DocidSet built = new DocidSet (invList.docids, invList.df);
+
+    synchronized (stripe) {
+      if (entry.docidSet != null) {
+        return entry.docidSet;
+      }
+
+      entry.docidSet = built;
+
+      if (stripe.lists.get (getKey (termString, fieldString)) == entry) {
+        size.addAndGet (built.getSizeInBytes ());
+      }
+    }
+
+    evict (stripes, stripeIndex);
+    return built;
+  }
+
+  /**
+   *  Look up a cached inverted list.
+   *  @param stripes The cache stripes.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The entry, or null if the list isn't cached.
+   */
+  private static Entry getEntry (Stripe[] stripes, String termString,
+                                 String fieldString) {
+
+    Stripe stripe = stripes[getStripeIndex (stripes, termString, fieldString)];
+
+    synchronized (stripe) {
+      return stripe.lists.get (getKey (termString, fieldString));
+    }
+  }
+
+  /**
+   *  Get the cache key of an inverted list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The key.
+   */
+  private static String getKey (String termString, String fieldString) {
+    return fieldString + ":" + termString;
+  }
+
+  /**
+   *  Get the stripe that an inverted list belongs to.
+   *  @param stripes The cache stripes.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The index of the stripe.
+   */
+  private static int getStripeIndex (Stripe[] stripes, String termString,
+                                     String fieldString) {
+    int hash = getKey (termString, fieldString).hashCode ();
+    return (hash & 0x7fffffff) % stripes.length;
+  }
+
+  /**
+   *  Add an inverted list to the cache, if it fits in the budget, and
+   *  evict lists until the cache is within its budget.
+   *  @param stripes The cache stripes.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param entry The compressed inverted list.
+   *  @return The entry, or null if it is larger than the budget.
+   */
+  private static Entry put (Stripe[] stripes, String termString,
+                            String fieldString, Entry entry) {
+
+    if (entry.getSize () > PostingsCache.budget) {
+      return null;
+    }
+
+    int stripeIndex = getStripeIndex (stripes, termString, fieldString);
+    Stripe stripe = stripes[stripeIndex];
+
+    synchronized (stripe) {
+      Entry old = stripe.lists.put (getKey (termString, fieldString), entry);
+      size.addAndGet (entry.getSize () - ((old != null) ? old.getSize () : 0));
+    }
+
+    evict (stripes, stripeIndex);
+    return entry;
+  }
+
+  /**
+   *  Evict least recently used lists until the cache is within its
+   *  budget.  Stripes are locked one at a time, starting with the
+   *  stripe after lastStripe, so the stripe that just grew is visited
+   *  last.
+   *  @param stripes The cache stripes.
+   *  @param lastStripe The index of the stripe to visit last.
+   */
+  private static void evict (Stripe[] stripes, int lastStripe) {
+
+    for (int i = 1;
+         (i <= stripes.length) && (size.get () > PostingsCache.budget);
+         i++) {
+
+      Stripe stripe = stripes[(lastStripe + i) % stripes.length];
+
+      synchronized (stripe) {
+        Iterator<Entry> lru = stripe.lists.values ().iterator ();
+
+        while ((size.get () > PostingsCache.budget) && lru.hasNext ()) {
+          size.addAndGet (- lru.next ().getSize ());
+          lru.remove ();
+          evictions.incrementAndGet ();
+        }
+      }
+    }
+  }
+
+  /**
+   *  Get the cache statistics.
+   *  @return A one-line summary of hits, misses, evictions, and size.
+   */
+  public static String getStats () {
+
+    int entries = 0;
+
+    for (Stripe stripe : PostingsCache.stripes) {
+      synchronized (stripe) {
+        entries += stripe.lists.size ();
+      }
+    }
+
+    return ("Postings cache:  hits=" + hits.get () +
+            " misses=" + misses.get () +
+            " evictions=" + evictions.get () +
+            " entries=" + entries +
+            " bytes=" + size.get () + "/" + PostingsCache.budget);
+  }
+
+  /**
+   *  Indicates whether the cache is enabled.
+   *  @return True if the cache has a positive budget.
+   */
+  public static boolean isEnabled () {
+    return (PostingsCache.budget > 0);
+  }
+
+  /**
+   *  Set the memory budget and discard the current contents.  A budget
+   *  of 0 disables the cache.
+   *  @param bytes The maximum number of bytes of compressed postings.
+   */
+  public static synchronized void setBudget (long bytes) {
+
+    PostingsCache.clear ();
+    PostingsCache.budget = Math.max (bytes, 0);
+
+    Stripe[] s = new Stripe[(bytes > 0) ? NUM_STRIPES : 0];
+
+    for (int i = 0; i < s.length; i++) {
+      s[i] = new Stripe ();
+    }
+
+    PostingsCache.stripes = s;
+  }
+
+  //  --------------- Compression -----------------------------------
+
+  /**
+   *  Decode the sections of a compressed inverted list that a caller
+   *  needs.
+   *  @param entry The compressed inverted list.
+   *  @param fieldString The field that the term occurs in.
+   *  @param requiredPostings PostingsEnum.NONE, FREQS, or POSITIONS.
+   *  @return The inverted list.
+   */
+  private static InvList decode (Entry entry, String fieldString,
+                                 int requiredPostings) {
+
+    InvList invList = new InvList (fieldString);
+    int df = entry.df;
+    boolean hasTfs = (requiredPostings != PostingsEnum.NONE);
+    boolean hasPositions = (requiredPostings == PostingsEnum.POSITIONS);
+
+    invList.df = df;
+    invList.ctf = entry.ctf;
+    invList.docids = new int[df];
+    invList.tfs = new int[df];
+
+    int[] p = { 0 };		// Read position in entry.docids
+    int docid = 0;
+
+    for (int i = 0; i < df; i++) {
+      docid += readVInt (entry.docids, p);
+      invList.docids[i] = docid;
+    }
+
+    if (! hasTfs) {
+      Arrays.fill (invList.tfs, 1);
+      return invList;
+    }
+
+    p[0] = 0;
+
+    for (int i = 0; i < df; i++) {
+      invList.tfs[i] = readVInt (entry.tfs, p);
+    }
+
+    if (! hasPositions) {
+      return invList;
+    }
+
+    invList.positionOffsets = new int[df + 1];
+    invList.positions = new int[entry.ctf];
+    p[0] = 0;
+
+    int offset = 0;
+
+    for (int i = 0; i < df; i++) {
+      int loc = 0;
+
+      for (int j = 0; j < invList.tfs[i]; j++) {
+        loc += readVInt (entry.positions, p);
+        invList.positions[offset++] = loc;
+      }
+
+      invList.positionOffsets[i + 1] = offset;
+    }
+
+    return invList;
+  }
+
+  /**
+   *  Compress an inverted list.
+   *  @param invList The inverted list.
+   *  @return The compressed inverted list.
+   */
+  private static Entry encode (InvList invList) {
+
+    ByteArrayOutputStream docids = new ByteArrayOutputStream (2 * invList.df + 10);
+    ByteArrayOutputStream tfs = new ByteArrayOutputStream (invList.df + 10);
+    ByteArrayOutputStream positions =
+      new ByteArrayOutputStream (2 * invList.ctf + 10);
+
+    int prevDocid = 0;
+
+    for (int i = 0; i < invList.df; i++) {
+      int tf = invList.tfs[i];
+      int offset = invList.positionOffsets[i];
+      int prevLoc = 0;
+
+      writeVInt (docids, invList.docids[i] - prevDocid);
+      writeVInt (tfs, tf);
+      prevDocid = invList.docids[i];
+
+      for (int j = 0; j < tf; j++) {
+        writeVInt (positions, invList.positions[offset + j] - prevLoc);
+        prevLoc = invList.positions[offset + j];
+      }
+    }
+
+    return new Entry (invList.df, invList.ctf, docids.toByteArray (),
+                      tfs.toByteArray (), positions.toByteArray ());
+  }
+
+  /**
+   *  Read a variable-byte encoded integer.
+   *  @param b The encoded data.
+   *  @param p A one-element array containing the read position; it is
+   *  advanced past the integer.
+   *  @return The integer.
+   */
+  private static int readVInt (byte[] b, int[] p) {
+
+    int i = p[0];
+    int value = 0;
+    int shift = 0;
+    byte next;
+
+    do {
+      next = b[i++];
+      value |= (next & 0x7f) << shift;
+      shift += 7;
+    } while (next < 0);
+
+    p[0] = i;
+    return value;
+  }
+
+  /**
+   *  Write a non-negative integer in variable-byte format:  7 bits per
+   *  byte, low-order bits first, with the high bit set on every byte
+   *  except the last.
+   *  @param out The output stream.
+   *  @param value The integer.
+   */
+  private static void writeVInt (ByteArrayOutputStream out, int value) {
+
+    while ((value & ~0x7f) != 0) {
+      out.write ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+
+    out.write (value);
+  }
+}
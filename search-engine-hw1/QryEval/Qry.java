@@ -58,7 +58,9 @@ import java.util.*;
  *  possible to produce them in a document-at-a-time mode because
  *  the df and ctf statistics are not known until the inverted list
  *  is fully constructed.  QryIop operators provide a document-at-a-time
- *  interface to the inverted lists via docIterators.
+ *  interface to the inverted lists via docIterators.  The TERM
+ *  operator is the exception:  its df and ctf are index statistics,
+ *  so it streams postings from the index on demand.
  *  </p><p>
  *  The data structure that stores query arguments (args) is accessible
  *  by subclasses.  If it is accessed via a standard Java iterator, the
@@ -75,6 +77,12 @@ public abstract class Qry {
    */
    public static final int INVALID_DOCID = Integer.MIN_VALUE;
 
+  /**
+   *  The docid that nextDoc and advance return when there are no more
+   *  matches.  It is the same as Lucene's DocIdSetIterator.NO_MORE_DOCS.
+   */
+  public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
   /**
    *  The arguments to this query operator.  The TERM query operator
    *  has 0 arguments.  The SCORE query operator has 1 argument.  All
@@ -97,9 +105,34 @@ public abstract class Qry {
    */
   private int docIteratorMatchCache = Qry.INVALID_DOCID;
   
+  /**
+   *  The docid that nextDoc or advance returned last:  -1 before the
+   *  first call, and NO_MORE_DOCS when the matches are exhausted.
+   *  Query operators that initialize iterators reset it.
+   */
+  protected int docID = -1;
+
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  The order in which docIteratorHasMatchAll visits the arguments:
+   *  cheapest (fewest matches) first.  It is planned on first use,
+   *  after the arguments are initialized.
+   */
+  private int[] docIteratorAllOrder = null;
+
+  /**
+   *  An estimate of the largest number of documents that the parent
+   *  query operator will move this operator to, or -1 if the parent
+   *  may read all of this operator's matches.  Conjunctions move
+   *  their arguments only to the matches of their rarest argument
+   *  (see limitArgAdvances).  Operators pass the limit on to their
+   *  arguments; TERM uses it to decide whether to stream its postings
+   *  with skips or to decode a cached list.
+   */
+  protected long maxAdvances = -1;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -180,6 +213,41 @@ public abstract class Qry {
        this.getClass().getName());
   }
 
+  /**
+   *  Move to the first match at or after target, and return it.  If
+   *  the current match is at or after target, it doesn't move.  This
+   *  and nextDoc are a leaner alternative to the docIterator methods,
+   *  modelled on Lucene's DocIdSetIterator:  a loop over nextDoc makes
+   *  about one virtual call per query operator per document, and
+   *  docID is a field read.  The default implementation is an adapter
+   *  over the docIterator methods; operators on the hot path override
+   *  it.  A query operator should be driven by one protocol or the
+   *  other, not both.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+
+    if (this.docID >= target) {
+      return this.docID;
+    }
+
+    this.docIteratorAdvanceTo (target);
+
+    return this.docID = (this.docIteratorHasMatch (r) ?
+                         this.docIteratorGetMatch () : NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the docid that nextDoc or advance returned last.
+   *  @return The internal docid, -1 if iteration hasn't started, or
+   *  NO_MORE_DOCS.
+   */
+  public final int docID () {
+    return this.docID;
+  }
+
   /**
    *  Advance the internal document iterator beyond the specified
    *  document.
@@ -212,7 +280,7 @@ public abstract class Qry {
    *  Clear the docIterator's matching docid cache.  The cache should
    *  be cleared whenever a docIterator is advanced.
    */
-  private void docIteratorClearMatchCache () {
+  protected void docIteratorClearMatchCache () {
     this.docIteratorMatchCache = Qry.INVALID_DOCID;
   }
 
@@ -241,57 +309,99 @@ public abstract class Qry {
   /**
    *  An instantiation of docIteratorHasMatch that is true if the
    *  query has a document that matches all query arguments; some
-   *  subclasses may choose to use this implementation.  
+   *  subclasses may choose to use this implementation.
+   *  <p>
+   *  The arguments are intersected by leapfrogging:  the cheapest
+   *  argument (see getCost) proposes a candidate docid, and the
+   *  arguments take turns advancing to the candidate.  An argument
+   *  that lands beyond the candidate proposes a new candidate, and
+   *  the turns continue from there.  A match is found when every
+   *  argument agrees.  The visiting order doesn't change scores.
+   *  </p>
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchAll (RetrievalModel r) {
 
-    boolean matchFound = false;
+    int[] order = this.docIteratorGetAllOrder ();
+    int n = order.length;
 
-    // Keep trying until a match is found or no match is possible.
+    // Get the candidate docid from the cheapest query argument.
 
-    while (! matchFound) {
+    Qry q_0 = this.args.get (order[0]);
 
-      // Get the docid of the first query argument.
-      
-      Qry q_0 = this.args.get (0);
+    if (! q_0.docIteratorHasMatch (r)) {
+      return false;
+    }
+
+    int candidate = q_0.docIteratorGetMatch ();
+    int agreed = 1;
+
+    // Keep trying until every argument agrees or an argument is
+    // exhausted, in which case there are no more matches.
+
+    for (int i = 1 % n; agreed < n; i = (i + 1) % n) {
+      Qry q_i = this.args.get (order[i]);
 
-      if (! q_0.docIteratorHasMatch (r)) {
-	return false;
+      q_i.docIteratorAdvanceTo (candidate);
+
+      if (! q_i.docIteratorHasMatch (r)) {
+        return false;
       }
 
-      int docid_0 = q_0.docIteratorGetMatch ();
+      int docid_i = q_i.docIteratorGetMatch ();
 
-      // Other query arguments must match the docid of the first query
-      // argument.
-      
-      matchFound = true;
+      if (docid_i == candidate) {
+        agreed ++;
+      } else {
+        candidate = docid_i;		// candidate can't match.  Try again.
+        agreed = 1;
+      }
+    }
 
-      for (int i=1; i<this.args.size(); i++) {
-	Qry q_i = this.args.get(i);
+    docIteratorSetMatchCache (candidate);
+    return true;
+  }
 
-	q_i.docIteratorAdvanceTo (docid_0);
+  /**
+   *  Get the order in which conjunctions visit the arguments, planning
+   *  it on the first call.
+   *  @return The argument indexes, in visiting order.
+   */
+  protected int[] docIteratorGetAllOrder () {
+    if (this.docIteratorAllOrder == null) {
+      this.docIteratorAllOrder = this.docIteratorPlanAll ();
+    }
 
-	if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
-	  return false;				// there are no more matches.
-	}
+    return this.docIteratorAllOrder;
+  }
 
-	int docid_i = q_i.docIteratorGetMatch ();
+  /**
+   *  Plan the order in which docIteratorHasMatchAll visits the
+   *  arguments:  in order of increasing cost, so that the rarest
+   *  argument leads and the others skip over more documents.
+   *  @return The argument indexes, in visiting order.
+   */
+  private int[] docIteratorPlanAll () {
 
-	if (docid_0 != docid_i) {	// docid_0 can't match.  Try again.
-	  q_0.docIteratorAdvanceTo (docid_i);
-	  matchFound = false;
-	  break;
-	}
-      }
+    int n = this.args.size ();
+    long[] costs = new long[n];
+    Integer[] order = new Integer[n];
 
-      if (matchFound) {
-        docIteratorSetMatchCache (docid_0);
-      }
+    for (int i = 0; i < n; i++) {
+      costs[i] = this.args.get (i).getCost ();
+      order[i] = i;
     }
 
-    return true;
+    Arrays.sort (order, (a, b) -> Long.compare (costs[a], costs[b]));
+
+    int[] plan = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      plan[i] = order[i];
+    }
+
+    return plan;
   }
 
   /**
@@ -345,6 +455,38 @@ public abstract class Qry {
     }
   }
 
+  /**
+   *  An instantiation of advance that moves to the first document at
+   *  or after target that any query argument matches; some subclasses
+   *  may choose to use this implementation.  An argument is advanced
+   *  only if it is behind target, so arguments that don't match the
+   *  current document cost a field read.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  protected int advanceMin (RetrievalModel r, int target) {
+
+    if (this.docID >= target) {
+      return this.docID;
+    }
+
+    int minDocid = NO_MORE_DOCS;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      Qry q_i = this.args.get (i);
+      int docid = q_i.docID ();
+
+      if (docid < target) {
+        docid = q_i.advance (r, target);
+      }
+
+      minDocid = Math.min (minDocid, docid);
+    }
+
+    return this.setDocID (minDocid);
+  }
+
   /**
    *  Return the status of the cache.
    *  @return True if a match is cached, otherwise false.
@@ -357,10 +499,29 @@ public abstract class Qry {
    *  Set the matching docid cache.
    *  @param docid The internal document id to store in the cache.
    */
-  private void docIteratorSetMatchCache (int docid) {
+  protected void docIteratorSetMatchCache (int docid) {
     this.docIteratorMatchCache = docid;
   }
 
+  /**
+   *  Record the docid that nextDoc or advance found, and cache it as
+   *  the match so that getScore can use it.
+   *  @param docid An internal document id, or NO_MORE_DOCS.
+   *  @return The docid.
+   */
+  protected final int setDocID (int docid) {
+
+    this.docID = docid;
+
+    if (docid == NO_MORE_DOCS) {
+      this.docIteratorClearMatchCache ();
+    } else {
+      this.docIteratorSetMatchCache (docid);
+    }
+
+    return docid;
+  }
+
   /**
    *  Get the i'th query argument.  The main value of this method
    *  is that it casts the argument to the correct type.
@@ -371,6 +532,25 @@ public abstract class Qry {
     return ((QryIop) this.args.get(i));
   }
 
+  /**
+   *  Estimate the cost of iterating over this query operator's
+   *  matches, i.e., about how many documents it matches.  Planners use
+   *  it to order arguments; it doesn't need to be exact.  The default
+   *  is the sum of the arguments' costs, which suits disjunctions.
+   *  Call it after the query operator is initialized.
+   *  @return The estimated cost.
+   */
+  public long getCost () {
+
+    long cost = 0;
+
+    for (Qry q_i : this.args) {
+      cost += q_i.getCost ();
+    }
+
+    return cost;
+  }
+
   /**
    *  Every operator has a display name that can be used by
    *  toString for debugging or other user feedback.  
@@ -389,6 +569,59 @@ public abstract class Qry {
    */
   public abstract void initialize(RetrievalModel r) throws IOException;
 
+  /**
+   *  Limit the number of documents that this query operator is
+   *  expected to be moved to.  The limit only decreases; see
+   *  maxAdvances.  This must be called before initialize.
+   *  @param n The number of documents, or -1 for no limit.
+   */
+  public void limitAdvances (long n) {
+    if ((n >= 0) && ((this.maxAdvances < 0) || (n < this.maxAdvances))) {
+      this.maxAdvances = n;
+    }
+  }
+
+  /**
+   *  Limit the advances of a conjunction's arguments.  They are moved
+   *  only to the matches of the rarest argument, so none is moved to
+   *  more documents than the rarest argument's (estimated) df.  This
+   *  must be called before the arguments are initialized.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void limitArgAdvances () throws IOException {
+
+    long minDf = Long.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      minDf = Math.min (minDf, QryPlanner.getDfEstimate (q_i));
+    }
+
+    for (Qry q_i : this.args) {
+      q_i.limitAdvances (minDf);
+    }
+  }
+
+  /**
+   *  Move to the next match, and return it.  The default
+   *  implementation is an adapter over the docIterator methods; see
+   *  advance.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int nextDoc (RetrievalModel r) {
+
+    if (this.docID == NO_MORE_DOCS) {
+      return NO_MORE_DOCS;
+    }
+
+    if (this.docID >= 0) {
+      this.docIteratorAdvancePast (this.docID);
+    }
+
+    return this.docID = (this.docIteratorHasMatch (r) ?
+                         this.docIteratorGetMatch () : NO_MORE_DOCS);
+  }
+
   /**
    *  Removes an argument from the list of query operator arguments.
    *  @param i The index of the query operator to remove.
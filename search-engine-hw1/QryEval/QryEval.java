@@ -56,12 +56,31 @@ public class QryEval {
     Idx.open (parameters.get ("indexPath"));
     RetrievalModel model = initializeRetrievalModel (parameters);
 
+    //  Optionally cache compressed postings across queries.
+
+    if (parameters.containsKey ("postingsCacheMB")) {
+      PostingsCache.setBudget (
+        Long.parseLong (parameters.get ("postingsCacheMB")) * 1024L * 1024L);
+    }
+
     //  Perform experiments.
     
     processQueryFile(parameters.get("queryFilePath"), model);
 
     //  Clean up.
     
+    if (PostingsCache.isEnabled ()) {
+      System.out.println (PostingsCache.getStats ());
+    }
+
+    //  Optionally save the collection statistics, so that later runs
+    //  start with a warm cache.
+
+    if (Boolean.parseBoolean (getParameter (parameters, "saveTermStats", "false"))) {
+      TermStats.write (parameters.get ("indexPath"), Idx.INDEXREADER);
+      System.out.println (TermStats.getStats ());
+    }
+
     timer.stop ();
     System.out.println ("Time:  " + timer);
   }
@@ -90,17 +109,49 @@ public class QryEval {
     //  STUDENTS::  Add new retrieval models here.
     else if (modelString.equals("rankedboolean")) {
       model = new RetrievalModelRankedBoolean();
-    } else if (modelString.equals("Indri")) {
-      model = new RetrievalModelRankedBoolean();
+    } else if (modelString.equals ("bm25")) {
+      model = new RetrievalModelBM25
+        (Double.parseDouble (getParameter (parameters, "BM25:k_1", "1.2")),
+         Double.parseDouble (getParameter (parameters, "BM25:b", "0.75")),
+         Double.parseDouble (getParameter (parameters, "BM25:k_3", "0")));
+    } else if (modelString.equals ("indri")) {
+      model = new RetrievalModelIndri
+        (Double.parseDouble (getParameter (parameters, "Indri:mu", "2500")),
+         Double.parseDouble (getParameter (parameters, "Indri:lambda", "0.4")));
     }
     else {
       throw new IllegalArgumentException
         ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
     }
+
+    if (parameters.containsKey ("dynamicPruning")) {
+      model.setDynamicPruning (parameters.get ("dynamicPruning"));
+    }
+
+    if (parameters.containsKey ("evaluator")) {
+      model.setEvaluator (parameters.get ("evaluator"));
+    }
+
+    if (parameters.containsKey ("postingBudget")) {
+      model.setPostingBudget (Long.parseLong (parameters.get ("postingBudget")));
+    }
       
     return model;
   }
 
+  /**
+   *  Get a parameter from the parameter file, or a default value.
+   *  @param parameters The parameters.
+   *  @param name The parameter name.
+   *  @param defaultValue The value if the parameter is missing.
+   *  @return The parameter value.
+   */
+  private static String getParameter (Map<String, String> parameters,
+                                      String name, String defaultValue) {
+    String value = parameters.get (name);
+    return (value != null) ? value : defaultValue;
+  }
+
   /**
    * Print a message indicating the amount of memory used. The caller can
    * indicate whether garbage collection should be performed, which slows the
@@ -121,13 +172,15 @@ public class QryEval {
   }
 
   /**
-   * Process one query.
+   * Process one query.  Only the k best documents are kept; see
+   * TopKCollector.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
-   * @return Search results
+   * @param k The number of documents to return.
+   * @return Search results, sorted
    * @throws IOException Error accessing the index
    */
-  static ScoreList processQuery(String qString, RetrievalModel model)
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
     throws IOException {
 
     String defaultOp = model.defaultQrySopName ();
@@ -140,21 +193,54 @@ public class QryEval {
     
     if (q != null) {
 
-      ScoreList results = new ScoreList ();
+      TopKCollector results = new TopKCollector (k);
       
+      //  Term-at-a-time, score-at-a-time, and bitset evaluation
+      //  handle some queries; other queries fall back to
+      //  document-at-a-time evaluation.
+
+      String evaluator = model.getEvaluator ();
+      ScoreList otherResults = null;
+
+      if (evaluator.equals (RetrievalModel.EVALUATOR_AUTO)) {
+        evaluator = QryPlanner.chooseEvaluator ((QrySop) q, model);
+      }
+
+      if (evaluator.equals (RetrievalModel.EVALUATOR_TAAT)) {
+        otherResults = TaatEvaluator.evaluate ((QrySop) q, model, k);
+      } else if (evaluator.equals (RetrievalModel.EVALUATOR_SAAT)) {
+        otherResults = SaatEvaluator.evaluate ((QrySop) q, model, k);
+      } else if (evaluator.equals (RetrievalModel.EVALUATOR_BITSET)) {
+        otherResults = BitsetEvaluator.evaluate ((QrySop) q, model, k);
+      }
+
+      if (otherResults != null) {
+        return otherResults;
+      }
+
       if (q.args.size () > 0) {		// Ignore empty queries
 
         q.initialize (model);
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
+        //  Each time the top k improves, tell the query, so that it
+        //  can skip documents that can't be in the top k.
+
+        int docid;
+
+        while ((docid = q.nextDoc (model)) != Qry.NO_MORE_DOCS) {
           double score = ((QrySop) q).getScore (model);
-          results.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+          results.collect (docid, score);
+          ((QrySop) q).setScoreThreshold (model, results.getThreshold ());
+        }
+
+        String pruningStats = ((QrySop) q).getPruningStats ();
+
+        if (pruningStats != null) {
+          System.out.println ("    " + pruningStats);
         }
       }
 
-      return results;
+      return results.getScoreList ();
     } else
       return null;
   }
@@ -180,17 +266,20 @@ public class QryEval {
 
       while ((qLine = input.readLine()) != null) {
         printMemoryUsage(false);
-        String[] pair = qLine.split(":");
+        //  The query id ends at the first ':'.  The query may contain
+        //  ':' too, e.g., #FIELDS (title:0.3 body:0.7 apple).
+
+        String[] pair = qLine.split(":", 2);
 
         if (pair.length != 2) {
           throw new IllegalArgumentException
-                  ("Syntax error:  Each line must contain one ':'.");
+                  ("Syntax error:  Each line must contain a ':'.");
         }
 
         String qid = pair[0];
         String query = pair[1];
-        ScoreList results = processQuery(query, model);
         int limit = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+        ScoreList results = processQuery(query, model, limit);
         exportResult(qid, results, limit);
 //        printResults(qid, results);
         System.out.println();
@@ -278,6 +367,8 @@ public class QryEval {
 
         int size = limit < result.size() ? limit : result.size();
         result.sort();
+        result.truncate(size);
+        result.resolveExternalDocids();
         for (int i = 0; i < size; i++) {
           String id = result.getExternalDocid(i);
           Double sc = result.getDocidScore(i);
@@ -4,6 +4,8 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.PostingsEnum;
+
 /**
  *  All query operators that return inverted lists are subclasses of
  *  the QryIop class.  This class has two main purposes.  First, it
@@ -18,6 +20,8 @@ import java.util.*;
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
  *  available via specific methods (e.g., getDf and getCtf).
+ *  QryIopTerm is an exception; it streams its postings from the index
+ *  and overrides the iterator methods.
  *  </p><p>
  *  QryIop operators support iteration over the locations in the
  *  document that Qry.docIteratorHasMatch matches.  The semantics
@@ -63,6 +67,61 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  The number of entries that the most recent docIterator advance
+   *  (or locIterator advance) skipped over.
+   */
+  protected int docIteratorSkipped = 0;
+  protected int locIteratorSkipped = 0;
+
+  /**
+   *  The postings features that the parent query operator needs from
+   *  this operator's inverted list, expressed as a Lucene PostingsEnum
+   *  flag (NONE, FREQS, or POSITIONS).  The parent sets it before it
+   *  initializes this operator.  Operators that read postings from the
+   *  index may use it to avoid decoding information that isn't needed.
+   */
+  protected int requiredPostings = PostingsEnum.POSITIONS;
+
+  /**
+   *  Operators that stream their postings instead of materializing an
+   *  inverted list (invertedList is null) decode the locations of the
+   *  current document into this buffer on demand; locationsLength is
+   *  -1 until they are decoded.  See decodeLocations.
+   */
+  protected int[] locations = new int[16];
+  protected int locationsLength = -1;
+
+  /**
+   *  Move to the first document at or after target in the inverted
+   *  list, and return it.  Operators that stream their matches
+   *  override it.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @param target An internal document id.
+   *  @return The internal docid, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+
+    if (this.invertedList == null) {
+      return super.advance (r, target);
+    }
+
+    if (this.docID >= target) {
+      return this.docID;
+    }
+
+    int start = this.docIteratorIndex;
+
+    this.docIteratorIndex =
+      QryIop.gallop (this.invertedList.docids, start, this.invertedList.df,
+                     target);
+    this.docIteratorSkipped = this.docIteratorIndex - start;
+    this.locIteratorIndex = 0;
+
+    return this.docID = (this.docIteratorIndex < this.invertedList.df) ?
+      this.invertedList.docids[this.docIteratorIndex] : NO_MORE_DOCS;
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -70,11 +129,12 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    int start = this.docIteratorIndex;
+
+    this.docIteratorIndex =
+      QryIop.gallop (this.invertedList.docids, start, this.invertedList.df,
+                     docid + 1);
+    this.docIteratorSkipped = this.docIteratorIndex - start;
     this.locIteratorIndex = 0;
   }
 
@@ -85,11 +145,12 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    int start = this.docIteratorIndex;
+
+    this.docIteratorIndex =
+      QryIop.gallop (this.invertedList.docids, start, this.invertedList.df,
+                     docid);
+    this.docIteratorSkipped = this.docIteratorIndex - start;
     this.locIteratorIndex = 0;
   }
 
@@ -98,7 +159,18 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
+  }
+
+  /**
+   *  Return the number of documents that the most recent
+   *  docIteratorAdvancePast or docIteratorAdvanceTo skipped over.  This
+   *  is useful for measuring how much work skipping saved.  Operators
+   *  that stream postings from the index (e.g., TERM) report 0.
+   *  @return The number of documents skipped.
+   */
+  public int docIteratorGetSkipped () {
+    return this.docIteratorSkipped;
   }
 
   /**
@@ -109,16 +181,39 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch () {
-    return this.invertedList.getDocid (this.docIteratorIndex);
+    return this.invertedList.docids[this.docIteratorIndex];
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Copy the locations of the document that the docIterator points to
+   *  now into an array.  The caller must ensure that dest has room for
+   *  docIteratorGetMatchTf locations starting at destPos.
+   *  @param dest The array that receives the locations.
+   *  @param destPos The index in dest of the first location.
+   *  @return The number of locations copied (the tf).
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchPositions (int[] dest, int destPos) {
+
+    if (this.invertedList == null) {
+      this.locIteratorLoad ();
+      System.arraycopy (this.locations, 0, dest, destPos, this.locationsLength);
+      return this.locationsLength;
+    }
+
+    int tf = this.invertedList.tfs[this.docIteratorIndex];
+    System.arraycopy (this.invertedList.positions,
+                      this.invertedList.positionOffsets[this.docIteratorIndex],
+                      dest, destPos, tf);
+    return tf;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf).
+   */
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.tfs[this.docIteratorIndex];
   }
 
   /**
@@ -130,6 +225,59 @@ public abstract class QryIop extends Qry {
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
+  /**
+   *  Find the first index i in [from, to) such that a[i] &gt;= target,
+   *  or to if there is none; a must be sorted.  Exponential (galloping)
+   *  search finds a range that contains the answer, and binary search
+   *  finds the answer within that range, so the cost is logarithmic in
+   *  the distance skipped rather than linear.
+   *  @param a A sorted array.
+   *  @param from The first index to consider.
+   *  @param to One past the last index to consider.
+   *  @param target The value to search for.
+   *  @return The index of the first entry that is at least target.
+   */
+  static int gallop (int[] a, int from, int to, int target) {
+
+    //  Short advances are the most common case.
+
+    if ((from >= to) || (a[from] >= target)) {
+      return from;
+    }
+
+    //  a[lo] < target.  Double the step until a[hi] >= target or hi
+    //  passes the end of the range.
+
+    int lo = from;
+    int step = 1;
+    int hi = from + 1;
+
+    while ((hi < to) && (a[hi] < target)) {
+      lo = hi;
+      step <<= 1;
+      hi = lo + step;
+    }
+
+    if (hi > to) {
+      hi = to;
+    }
+
+    //  Binary search in (lo, hi].  a[lo] < target, and a[hi] >= target
+    //  or hi == to.
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a[mid] < target) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return hi;
+  }
+
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
@@ -150,6 +298,76 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Estimate the cost of iterating over this query operator's
+   *  matches.  A materialized inverted list costs its df.
+   *  @return The estimated cost.
+   */
+  public long getCost () {
+    if (this.invertedList != null) {
+      return this.invertedList.df;
+    }
+
+    return super.getCost ();
+  }
+
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxTf
+   *  (docid).  The default is one block for the whole list.
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get an upper bound on the term frequency (tf) of documents from
+   *  docid to getBlockLastDocid (docid).  Block-Max WAND uses it.  The
+   *  default is the bound for the whole list (see getMaxTf).
+   *  @param docid An internal document id.
+   *  @return An upper bound on tf in the block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockMaxTf (int docid) throws IOException {
+    return this.getMaxTf ();
+  }
+
+  /**
+   *  Get a lower bound on the field length of documents from docid to
+   *  getBlockLastDocid (docid) that match.  Block-Max WAND uses it to
+   *  bound scores that decrease with length (e.g., BM25).  The default
+   *  is 0, which bounds any length.
+   *  @param docid An internal document id.
+   *  @return A lower bound on field lengths in the block.
+   */
+  public int getBlockMinLength (int docid) {
+    return 0;
+  }
+
+  /**
+   *  Get an upper bound on the term frequency (tf) of any document in
+   *  this query operator's inverted list.  Pruning strategies (e.g.,
+   *  WAND) use it to bound document scores.  The bound for a
+   *  materialized list is exact; streaming operators override this.
+   *  @return An upper bound on tf.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMaxTf () throws IOException {
+
+    if (this.invertedList == null) {
+      return Integer.MAX_VALUE;
+    }
+
+    int maxTf = 0;
+
+    for (int i = 0; i < this.invertedList.df; i++) {
+      maxTf = Math.max (maxTf, this.invertedList.tfs[i]);
+    }
+
+    return maxTf;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -158,13 +376,73 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Decode the locations of the document that the docIterator points
+   *  to now into locations and set locationsLength.  It is only
+   *  called while the operator streams its postings (invertedList is
+   *  null).
+   */
+  protected abstract void decodeLocations ();
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  Operators
+   *  that stream their postings instead prepare their iterators here.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Materialize the rest of a streaming operator's inverted list,
+   *  starting at the current document, and switch to the QryIop
+   *  iterators over the materialized list.  Does nothing if the list
+   *  is already materialized.  Streaming operators whose df and ctf
+   *  are not known in advance (e.g., SYN, NEAR/n) use this to
+   *  implement getDf and getCtf.  Locations are copied only if they
+   *  were requested (see setRequiredPostings); otherwise they are 0.
+   */
+  protected void materialize () {
+
+    if (this.invertedList != null) {
+      return;
+    }
+
+    InvList list = new InvList (this.getField ());
+    int[] buffer = new int[16];
+    boolean hasLocations = (this.requiredPostings == PostingsEnum.POSITIONS);
+
+    while (this.docIteratorHasMatch (null)) {
+      int docid = this.docIteratorGetMatch ();
+      int tf = this.docIteratorGetMatchTf ();
+
+      if (tf > buffer.length) {
+        buffer = new int[Math.max (tf, 2 * buffer.length)];
+      }
+
+      if (hasLocations) {
+        this.docIteratorGetMatchPositions (buffer, 0);
+      }
+
+      list.appendPosting (docid, buffer, tf);
+      this.docIteratorAdvancePast (docid);
+    }
+
+    this.invertedList = list;
+    this.docIteratorIndex = 0;
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Make sure that the locations buffer has room for n locations.
+   *  The existing contents are not preserved.
+   *  @param n The required capacity.
+   */
+  protected void locationsEnsureCapacity (int n) {
+    if (n > this.locations.length) {
+      this.locations = new int[Math.max (n, 2 * this.locations.length)];
+    }
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
@@ -173,8 +451,11 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    //  Initialize the query arguments (if any).  Subclasses declare
+    //  which postings features their arguments need before this runs.
+
     for (Qry q_i: this.args) {
+      q_i.limitAdvances (this.maxAdvances);
       ((QryIop) q_i).initialize (r);
     }
 
@@ -186,8 +467,29 @@ public abstract class QryIop extends Qry {
 
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+    this.docID = -1;
   }
   
+  /**
+   *  Move to the next document, and return it.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return The internal docid, or NO_MORE_DOCS.
+   */
+  public int nextDoc (RetrievalModel r) {
+    return (this.docID == NO_MORE_DOCS) ?
+      NO_MORE_DOCS : this.advance (r, this.docID + 1);
+  }
+
+  /**
+   *  Declare which postings features the caller needs from this query
+   *  operator.  This must be called before initialize.
+   *  @param flags PostingsEnum.NONE (docids), PostingsEnum.FREQS (docids
+   *  and tf), or PostingsEnum.POSITIONS (docids, tf, and locations).
+   */
+  public void setRequiredPostings (int flags) {
+    this.requiredPostings = flags;
+  }
+
  /**
    *  Advance the query operator's internal iterator to the
    *  next location.
@@ -202,13 +504,25 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
 
-    while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
-      locIteratorIndex ++;
+    if (this.invertedList == null) {
+      this.locIteratorLoad ();
+
+      int start = this.locIteratorIndex;
+
+      this.locIteratorIndex =
+        QryIop.gallop (this.locations, start, this.locationsLength, loc + 1);
+      this.locIteratorSkipped = this.locIteratorIndex - start;
+      return;
     }
+
+    int offset = this.invertedList.positionOffsets[this.docIteratorIndex];
+    int start = offset + this.locIteratorIndex;
+    int end = offset + this.invertedList.tfs[this.docIteratorIndex];
+
+    int i = QryIop.gallop (this.invertedList.positions, start, end, loc + 1);
+    this.locIteratorSkipped = i - start;
+    this.locIteratorIndex = i - offset;
   }
 
   /**
@@ -216,8 +530,42 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
-    this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+
+    if (this.invertedList == null) {
+      this.locIteratorLoad ();
+      this.locIteratorIndex = this.locationsLength;
+      return;
+    }
+
+    this.locIteratorIndex = this.invertedList.tfs[this.docIteratorIndex];
+  }
+
+  /**
+   *  Decode the locations of the current document, if a streaming
+   *  operator has not done that already.
+   */
+  private void locIteratorLoad () {
+    if (this.locationsLength < 0) {
+      this.decodeLocations ();
+    }
+  }
+
+  /**
+   *  Reset the locIterator because a streaming operator's docIterator
+   *  moved to a new document.  Locations are decoded again on demand.
+   */
+  protected void locIteratorReset () {
+    this.locIteratorIndex = 0;
+    this.locationsLength = -1;
+  }
+
+  /**
+   *  Return the number of locations that the most recent
+   *  locIteratorAdvancePast skipped over.
+   *  @return The number of locations skipped.
+   */
+  public int locIteratorGetSkipped () {
+    return this.locIteratorSkipped;
   }
 
   /**
@@ -228,8 +576,15 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+
+    if (this.invertedList == null) {
+      this.locIteratorLoad ();
+      return this.locations[this.locIteratorIndex];
+    }
+
+    return this.invertedList.positions[
+      this.invertedList.positionOffsets[this.docIteratorIndex] +
+      this.locIteratorIndex];
   }
 
   /**
@@ -238,8 +593,14 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
+
+    if (this.invertedList == null) {
+      this.locIteratorLoad ();
+      return (this.locIteratorIndex < this.locationsLength);
+    }
+
     return (this.locIteratorIndex <
-            this.invertedList.getTf (this.docIteratorIndex));
+            this.invertedList.tfs[this.docIteratorIndex]);
   }
 
 }
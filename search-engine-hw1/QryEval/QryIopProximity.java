@@ -0,0 +1,455 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.PostingsEnum;
+
+/**
+ *  The root class of proximity operators (e.g., NEAR/n, WINDOW/n).
+ *  A document matches if its arguments occur close enough to each
+ *  other; subclasses define "close enough" by implementing
+ *  matchLocations.
+ *  <p>
+ *  Proximity operators do not materialize their inverted lists.  The
+ *  docIterator first finds a document that contains every argument,
+ *  using a leapfrog intersection in which each argument skips to the
+ *  largest docid seen so far.  Locations are matched only in those
+ *  candidate documents, using reusable int buffers.  Candidates
+ *  without a location match are skipped.
+ *  </p><p>
+ *  The df and ctf are not known until the list has been traversed, so
+ *  the first call to getDf or getCtf materializes the rest of the list;
+ *  after that, the QryIop iterators are used.
+ *  </p>
+ */
+public abstract class QryIopProximity extends QryIop {
+
+  /**
+   *  The distance parameter of the operator (the n of NEAR/n).
+   */
+  protected int distance = 0;
+
+  /**
+   *  The query arguments.
+   */
+  protected QryIop[] children;
+
+  /**
+   *  The internal document id that the docIterator points to now, or
+   *  INVALID_DOCID if the iterator is exhausted.
+   */
+  private int docid = Qry.INVALID_DOCID;
+
+  /**
+   *  Locations of the arguments in the candidate document, stored
+   *  end-to-end; argument i's locations are in
+   *  argLocations[argStart[i]] ... argLocations[argEnd[i]-1].
+   *  argNext[i] is the index of argument i's current location.
+   */
+  protected int[] argLocations = new int[16];
+  protected int[] argStart;
+  protected int[] argEnd;
+  protected int[] argNext;
+
+  /**
+   *  The locations of the matches in the current document.
+   */
+  private int[] matches = new int[16];
+  private int numMatches = 0;
+
+  /**
+   *  @param distance The distance parameter of the operator.
+   */
+  protected QryIopProximity(int distance) {
+    this.distance = distance;
+  }
+
+  /**
+   *  Record a match in the current document.  Matches must be added
+   *  in location order.
+   *  @param loc The location of the match.
+   */
+  protected void addMatch (int loc) {
+
+    if (this.numMatches == this.matches.length) {
+      this.matches = Arrays.copyOf (this.matches, 2 * this.matches.length);
+    }
+
+    this.matches[this.numMatches++] = loc;
+  }
+
+  /**
+   *  Move to the first match at or after target, and return it.  The
+   *  match is the one that nextMatch finds.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @param target An internal document id.
+   *  @return The internal docid, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+    if (this.invertedList != null) {
+      return super.advance (r, target);
+    }
+
+    if (this.docID >= target) {
+      return this.docID;
+    }
+
+    if ((this.docid != Qry.INVALID_DOCID) && (this.docid < target)) {
+      this.nextMatch (target);
+    }
+
+    this.locIteratorReset ();
+
+    return this.docID = (this.docid != Qry.INVALID_DOCID) ?
+      this.docid : NO_MORE_DOCS;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    this.docIteratorAdvanceTo (docid + 1);
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    if ((this.docid != Qry.INVALID_DOCID) && (this.docid < docid)) {
+      this.nextMatch (docid);
+    }
+
+    this.locIteratorReset ();
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.invertedList != null) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.docid = Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.invertedList != null) {
+      return super.docIteratorGetMatch ();
+    }
+
+    return this.docid;
+  }
+
+  /**
+   *  Return the number of matches in the document that the
+   *  docIterator points to now.
+   *  @return The term frequency (tf).
+   */
+  public int docIteratorGetMatchTf () {
+    if (this.invertedList != null) {
+      return super.docIteratorGetMatchTf ();
+    }
+
+    return this.numMatches;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.invertedList != null) {
+      return super.docIteratorHasMatch (r);
+    }
+
+    return (this.docid != Qry.INVALID_DOCID);
+  }
+
+  /**
+   *  Match locations were found when the docIterator moved to the
+   *  current document, so just copy them.
+   */
+  protected void decodeLocations () {
+    this.locationsEnsureCapacity (this.numMatches);
+    System.arraycopy (this.matches, 0, this.locations, 0,
+                      this.numMatches);
+    this.locationsLength = this.numMatches;
+  }
+
+  /**
+   *  Prepare the docIterator and move it to the first match.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+
+    int n = this.args.size ();
+
+    this.invertedList = null;
+    this.children = new QryIop[n];
+    this.argStart = new int[n];
+    this.argEnd = new int[n];
+    this.argNext = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      this.children[i] = (QryIop) this.args.get (i);
+    }
+
+    this.docid = (n > 0) ? 0 : Qry.INVALID_DOCID;
+
+    if (n > 0) {
+      this.nextMatch (0);
+    }
+
+    this.locIteratorReset ();
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.  This materializes the inverted list.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    this.materialize ();
+    return super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.  This materializes the inverted list.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    this.materialize ();
+    return super.getDf ();
+  }
+
+  /**
+   *  Estimate the cost of iterating over this query operator's
+   *  matches.  Matches are a subset of the intersection of the
+   *  arguments, so the cheapest argument bounds the cost.
+   *  @return The estimated cost.
+   */
+  public long getCost () {
+    if (this.invertedList != null) {
+      return super.getCost ();
+    }
+
+    long cost = Long.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      cost = Math.min (cost, q_i.getCost ());
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxTf (docid),
+   *  which is where the first argument's block ends.
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+    if (this.invertedList != null) {
+      return super.getBlockLastDocid (docid);
+    }
+
+    int last = Integer.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      last = Math.min (last, ((QryIop) q_i).getBlockLastDocid (docid));
+    }
+
+    return last;
+  }
+
+  /**
+   *  Get an upper bound on the term frequency (tf) of documents from
+   *  docid to getBlockLastDocid (docid), which is the smallest of the
+   *  arguments' block bounds.
+   *  @param docid An internal document id.
+   *  @return An upper bound on tf in the block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockMaxTf (int docid) throws IOException {
+    if (this.invertedList != null) {
+      return super.getBlockMaxTf (docid);
+    }
+
+    int maxTf = Integer.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      maxTf = Math.min (maxTf, ((QryIop) q_i).getBlockMaxTf (docid));
+    }
+
+    return maxTf;
+  }
+
+  /**
+   *  Get a lower bound on the field length of documents from docid to
+   *  getBlockLastDocid (docid) that match.  A match contains every
+   *  argument, so the bound is the largest of the arguments' bounds.
+   *  @param docid An internal document id.
+   *  @return A lower bound on field lengths in the block.
+   */
+  public int getBlockMinLength (int docid) {
+    if (this.invertedList != null) {
+      return super.getBlockMinLength (docid);
+    }
+
+    int minLength = 0;
+
+    for (Qry q_i : this.args) {
+      minLength = Math.max (minLength, ((QryIop) q_i).getBlockMinLength (docid));
+    }
+
+    return minLength;
+  }
+
+  /**
+   *  Get an upper bound on the term frequency (tf) of any document.
+   *  Each match uses a location of every argument, so the bound is
+   *  the smallest of the arguments' bounds.
+   *  @return An upper bound on tf.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMaxTf () throws IOException {
+    if (this.invertedList != null) {
+      return super.getMaxTf ();
+    }
+
+    int maxTf = Integer.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      maxTf = Math.min (maxTf, ((QryIop) q_i).getMaxTf ());
+    }
+
+    return maxTf;
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments), including any
+   *  internal iterators.  Proximity operators match the locations of
+   *  their arguments, so the arguments need positions.  Like #AND,
+   *  they move their arguments to the matches of the rarest one.
+   *  @param r A retrieval model (that is ignored)
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    for (Qry q_i : this.args) {
+      ((QryIop) q_i).setRequiredPostings (PostingsEnum.POSITIONS);
+    }
+
+    this.limitArgAdvances ();
+
+    super.initialize (r);
+  }
+
+  /**
+   *  Load the locations of every argument in the current candidate
+   *  document into argLocations, and point argNext at each argument's
+   *  first location.
+   */
+  private void loadArgLocations () {
+
+    int total = 0;
+
+    for (int i = 0; i < this.children.length; i++) {
+      int tf_i = this.children[i].docIteratorGetMatchTf ();
+
+      if (total + tf_i > this.argLocations.length) {
+        this.argLocations =
+          Arrays.copyOf (this.argLocations,
+                         Math.max (total + tf_i, 2 * this.argLocations.length));
+      }
+
+      this.argStart[i] = total;
+      this.argNext[i] = total;
+      total += this.children[i].docIteratorGetMatchPositions (this.argLocations, total);
+      this.argEnd[i] = total;
+    }
+  }
+
+  /**
+   *  Find the matches in a document that contains every argument.  When
+   *  this is called, argLocations, argStart, argEnd, and argNext describe
+   *  the arguments' locations in the document.  Call addMatch for each
+   *  match.
+   */
+  protected abstract void matchLocations ();
+
+  /**
+   *  Move the docIterator to the first match with an internal id of at
+   *  least target.  Leapfrog intersection finds a document that contains
+   *  every argument; then locations are matched.  Arguments are moved
+   *  with advance, which returns their new docids.
+   *  @param target An internal document id.
+   */
+  private void nextMatch (int target) {
+
+    int n = this.children.length;
+    int agree = 0;		// Consecutive arguments that are at target
+    int i = 0;
+
+    while (true) {
+      int docid_i = this.children[i].advance (null, target);
+
+      if (docid_i == NO_MORE_DOCS) {
+        this.docid = Qry.INVALID_DOCID;
+        return;
+      }
+
+      if (docid_i > target) {
+        target = docid_i;
+        agree = 1;
+      } else {
+        agree ++;
+      }
+
+      if (agree == n) {
+
+        //  Every argument is at target.  Is it a location match?
+
+        this.numMatches = 0;
+        this.loadArgLocations ();
+        this.matchLocations ();
+
+        if (this.numMatches > 0) {
+          this.docid = target;
+          return;
+        }
+
+        target ++;
+        agree = 0;
+      }
+
+      i = (i + 1) % n;
+    }
+  }
+}
@@ -6,68 +6,505 @@ import java.util.*;
 
 /**
  *  The SYN operator for all retrieval models.
+ *  <p>
+ *  The SYN operator does not materialize its inverted list.  It keeps
+ *  its arguments in a min-heap ordered by their current docids; the
+ *  heap's root is the current document.  Advancing the docIterator
+ *  advances (and skips) only the arguments that are behind the target.
+ *  The tf is the sum of the matching arguments' tfs, and locations are
+ *  produced on demand by a k-way merge of the arguments' sorted
+ *  locations.
+ *  </p><p>
+ *  The df and ctf of a synonym list are not known until the list has
+ *  been traversed, so the first call to getDf or getCtf materializes
+ *  the rest of the list; after that, the QryIop iterators are used.
+ *  </p>
  */
 public class QryIopSyn extends QryIop {
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  The query arguments, and a min-heap of the indexes of arguments
+   *  that have not been exhausted, ordered by heapDocids.
+   */
+  private QryIop[] children;
+  private int[] heap;
+  private int[] heapDocids;
+  private int heapSize = 0;
+
+  /**
+   *  The arguments that match the current document.  They are found
+   *  on demand; matchedDocid is the document they were found for.
+   */
+  private int[] matched;
+  private int numMatched = 0;
+  private int matchedDocid = Qry.INVALID_DOCID;
+
+  /**
+   *  Buffers for the k-way merge of argument locations.
+   */
+  private int[] mergeInput = new int[16];
+  private int[] mergeStart;
+  private int[] mergeEnd;
+  private int[] mergeHeap;
+
+  /**
+   *  Move to the first document at or after target, and return it.
+   *  The document is the heap's root.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @param target An internal document id.
+   *  @return The internal docid, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+    if (this.invertedList != null) {
+      return super.advance (r, target);
+    }
+
+    if (this.docID >= target) {
+      return this.docID;
+    }
+
+    this.heapAdvanceTo (target);
+
+    return this.docID = (this.heapSize > 0) ?
+      this.heapDocids[0] : NO_MORE_DOCS;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    this.heapAdvanceTo (docid + 1);
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    this.heapAdvanceTo (docid);
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.invertedList != null) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.heapSize = 0;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.invertedList != null) {
+      return super.docIteratorGetMatch ();
+    }
+
+    return this.heapDocids[0];
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, which is the sum of the matching arguments' tfs.
+   *  @return The term frequency (tf).
+   */
+  public int docIteratorGetMatchTf () {
+    if (this.invertedList != null) {
+      return super.docIteratorGetMatchTf ();
+    }
+
+    this.findMatched ();
+
+    int tf = 0;
+
+    for (int i = 0; i < this.numMatched; i++) {
+      tf += this.children[this.matched[i]].docIteratorGetMatchTf ();
+    }
+
+    return tf;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.invertedList != null) {
+      return super.docIteratorHasMatch (r);
+    }
+
+    return (this.heapSize > 0);
+  }
+
+  /**
+   *  Produce the locations of the current document by merging the
+   *  sorted locations of the matching arguments.
+   *  Note:  This implementation assumes that a location will not appear
+   *  in two or more arguments.  #SYN (apple apple) would break it.
+   */
+  protected void decodeLocations () {
+
+    this.findMatched ();
+
+    //  Copy each matching argument's locations into mergeInput.
+
+    int total = 0;
+
+    for (int i = 0; i < this.numMatched; i++) {
+      QryIop q_i = this.children[this.matched[i]];
+      int tf_i = q_i.docIteratorGetMatchTf ();
+
+      if (total + tf_i > this.mergeInput.length) {
+        this.mergeInput =
+          Arrays.copyOf (this.mergeInput,
+                         Math.max (total + tf_i, 2 * this.mergeInput.length));
+      }
+
+      this.mergeStart[i] = total;
+      total += q_i.docIteratorGetMatchPositions (this.mergeInput, total);
+      this.mergeEnd[i] = total;
+    }
+
+    this.locationsEnsureCapacity (total);
+    this.locationsLength = total;
+
+    if (this.numMatched == 1) {
+      System.arraycopy (this.mergeInput, 0, this.locations, 0, total);
+      return;
+    }
+
+    //  k-way merge.  mergeHeap is a min-heap of the inputs that are not
+    //  exhausted, ordered by their next location.
+
+    int heapSize = 0;
+
+    for (int i = 0; i < this.numMatched; i++) {
+      if (this.mergeStart[i] < this.mergeEnd[i]) {
+        this.mergeHeap[heapSize++] = i;
+      }
+    }
+
+    for (int i = heapSize / 2 - 1; i >= 0; i--) {
+      this.mergeSiftDown (i, heapSize);
+    }
+
+    for (int n = 0; n < total; n++) {
+      int top = this.mergeHeap[0];
+
+      this.locations[n] = this.mergeInput[this.mergeStart[top]++];
+
+      if (this.mergeStart[top] == this.mergeEnd[top]) {
+        heapSize --;
+        this.mergeHeap[0] = this.mergeHeap[heapSize];
+      }
+
+      if (heapSize > 0) {
+        this.mergeSiftDown (0, heapSize);
+      }
+    }
+  }
+
+  /**
+   *  Prepare the docIterator:  build the heap of arguments that have
+   *  a document.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
 
-    //  Create an empty inverted list.  If there are no query arguments,
-    //  this is the final result.
-    
-    this.invertedList = new InvList (this.getField());
+    int n = this.args.size ();
 
-    if (args.size () == 0) {
+    this.invertedList = null;
+    this.children = new QryIop[n];
+    this.heap = new int[n];
+    this.heapDocids = new int[n];
+    this.heapSize = 0;
+    this.matched = new int[n];
+    this.matchedDocid = Qry.INVALID_DOCID;
+    this.mergeStart = new int[n];
+    this.mergeEnd = new int[n];
+    this.mergeHeap = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      this.children[i] = (QryIop) this.args.get (i);
+
+      if (this.children[i].docIteratorHasMatch (null)) {
+        this.heap[this.heapSize] = i;
+        this.heapDocids[this.heapSize] = this.children[i].docIteratorGetMatch ();
+        this.heapSize ++;
+      }
+    }
+
+    for (int i = this.heapSize / 2 - 1; i >= 0; i--) {
+      this.siftDown (i);
+    }
+
+    this.locIteratorReset ();
+  }
+
+  /**
+   *  Find the arguments that match the current document.  They are
+   *  the heap nodes whose docid equals the root's; because of the heap
+   *  property, the search can stop at any node with a larger docid.
+   */
+  private void findMatched () {
+
+    int docid = this.heapDocids[0];
+
+    if (this.matchedDocid == docid) {
       return;
     }
 
-    //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  mergeHeap is not in use here, so it serves as the stack of heap
+    //  nodes that remain to be visited.
+
+    int[] stack = this.mergeHeap;
+    int stackSize = 0;
 
-    while (true) {
+    this.numMatched = 0;
+    stack[stackSize++] = 0;
 
-      //  Find the minimum next document id.  If there is none, we're done.
+    while (stackSize > 0) {
+      int k = stack[--stackSize];
 
-      int minDocid = Qry.INVALID_DOCID;
+      this.matched[this.numMatched++] = this.heap[k];
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_i_Docid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_i_Docid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_i_Docid;
-          }
+      for (int c = 2 * k + 1; (c <= 2 * k + 2) && (c < this.heapSize); c++) {
+        if (this.heapDocids[c] == docid) {
+          stack[stackSize++] = c;
         }
       }
+    }
+
+    this.matchedDocid = docid;
+  }
+
+  /**
+   *  Advance the heap to the specified document if it exists, or
+   *  beyond if it doesn't.  Only arguments whose docid is less than
+   *  the target are advanced; each one is moved with advance, which
+   *  returns its new docid.
+   *  @param docid The document's internal document id
+   */
+  private void heapAdvanceTo (int docid) {
+
+    while ((this.heapSize > 0) && (this.heapDocids[0] < docid)) {
+      int docid_0 = this.children[this.heap[0]].advance (null, docid);
+
+      if (docid_0 != NO_MORE_DOCS) {
+        this.heapDocids[0] = docid_0;
+      } else {
+        this.heapSize --;
+        this.heap[0] = this.heap[this.heapSize];
+        this.heapDocids[0] = this.heapDocids[this.heapSize];
+      }
+
+      this.siftDown (0);
+    }
+
+    this.locIteratorReset ();
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.  This materializes the inverted list.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    this.materialize ();
+    return super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.  This materializes the inverted list.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    this.materialize ();
+    return super.getDf ();
+  }
+
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxTf (docid),
+   *  which is where the first argument's block ends.
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+    if (this.invertedList != null) {
+      return super.getBlockLastDocid (docid);
+    }
+
+    int last = Integer.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      last = Math.min (last, ((QryIop) q_i).getBlockLastDocid (docid));
+    }
+
+    return last;
+  }
+
+  /**
+   *  Get an upper bound on the term frequency (tf) of documents from
+   *  docid to getBlockLastDocid (docid), which is the sum of the
+   *  arguments' block bounds.
+   *  @param docid An internal document id.
+   *  @return An upper bound on tf in the block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockMaxTf (int docid) throws IOException {
+    if (this.invertedList != null) {
+      return super.getBlockMaxTf (docid);
+    }
+
+    long maxTf = 0;
+
+    for (Qry q_i : this.args) {
+      maxTf += ((QryIop) q_i).getBlockMaxTf (docid);
+    }
+
+    return (int) Math.min (maxTf, Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Get a lower bound on the field length of documents from docid to
+   *  getBlockLastDocid (docid) that match.  A match contains at least
+   *  one argument, so the bound is the smallest of the arguments'
+   *  bounds.
+   *  @param docid An internal document id.
+   *  @return A lower bound on field lengths in the block.
+   */
+  public int getBlockMinLength (int docid) {
+    if (this.invertedList != null) {
+      return super.getBlockMinLength (docid);
+    }
+
+    int minLength = Integer.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      minLength = Math.min (minLength, ((QryIop) q_i).getBlockMinLength (docid));
+    }
+
+    return minLength;
+  }
+
+  /**
+   *  Get an upper bound on the term frequency (tf) of any document,
+   *  which is the sum of the arguments' bounds.
+   *  @return An upper bound on tf.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMaxTf () throws IOException {
+    if (this.invertedList != null) {
+      return super.getMaxTf ();
+    }
+
+    long maxTf = 0;
+
+    for (Qry q_i : this.args) {
+      maxTf += ((QryIop) q_i).getMaxTf ();
+    }
+
+    return (int) Math.min (maxTf, Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments), including any
+   *  internal iterators.  The tf of a synonym list is the sum of the
+   *  arguments' tfs, and its locations are merged from theirs, so the
+   *  arguments need the same postings features as this operator
+   *  (e.g., no positions under a SCORE operator).
+   *  @param r A retrieval model (that is ignored)
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    for (Qry q_i : this.args) {
+      ((QryIop) q_i).setRequiredPostings (this.requiredPostings);
+    }
+
+    super.initialize (r);
+  }
+
+  /**
+   *  Restore the heap property of mergeHeap below node k.
+   *  @param k A heap node.
+   *  @param size The number of nodes in the heap.
+   */
+  private void mergeSiftDown (int k, int size) {
+
+    int node = this.mergeHeap[k];
+    int key = this.mergeInput[this.mergeStart[node]];
+
+    while (2 * k + 1 < size) {
+      int c = 2 * k + 1;
+
+      if ((c + 1 < size) &&
+          (this.mergeInput[this.mergeStart[this.mergeHeap[c + 1]]] <
+           this.mergeInput[this.mergeStart[this.mergeHeap[c]]])) {
+        c ++;
+      }
+
+      if (this.mergeInput[this.mergeStart[this.mergeHeap[c]]] >= key) {
+        break;
+      }
 
-      if (minDocid == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+      this.mergeHeap[k] = this.mergeHeap[c];
+      k = c;
+    }
+
+    this.mergeHeap[k] = node;
+  }
+
+  /**
+   *  Restore the heap property of the argument heap below node k.
+   *  @param k A heap node.
+   */
+  private void siftDown (int k) {
+
+    int node = this.heap[k];
+    int key = this.heapDocids[k];
+
+    while (2 * k + 1 < this.heapSize) {
+      int c = 2 * k + 1;
+
+      if ((c + 1 < this.heapSize) &&
+          (this.heapDocids[c + 1] < this.heapDocids[c])) {
+        c ++;
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      if (this.heapDocids[c] >= key) {
+        break;
+      }
+
+      this.heap[k] = this.heap[c];
+      this.heapDocids[k] = this.heapDocids[c];
+      k = c;
     }
+
+    this.heap[k] = node;
+    this.heapDocids[k] = key;
   }
 
 }
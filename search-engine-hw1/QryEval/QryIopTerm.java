@@ -4,18 +4,79 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  Unlike other QryIop operators, the TERM operator does not
+ *  materialize an inverted list.  Its docIterator streams directly
+ *  from the Lucene PostingsEnum of each index segment, so
+ *  docIteratorAdvanceTo uses Lucene's skip lists, and locations are
+ *  decoded only when the locIterator is used.  The postings are opened
+ *  with the cheapest Lucene flag that provides what the parent query
+ *  operator requested (see QryIop.setRequiredPostings), so terms that
+ *  are scored directly never read locations.  The df and ctf are
+ *  read from the index.
+ *  </p><p>
+ *  When the PostingsCache is enabled, the TERM operator instead gets
+ *  a materialized inverted list from the cache, decoded only as far
+ *  as the parent requested, and the QryIop iterators are used.  It
+ *  keeps streaming if the parent is a conjunction that will move it
+ *  to so few documents (see Qry.maxAdvances) that skipping reads
+ *  fewer postings than decoding the whole list.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  Lucene decodes postings in blocks of this many, so each advance
+   *  of a streaming TERM reads about one block.
+   */
+  private static final int POSTINGS_BLOCK_SIZE = 128;
+
   private String term;
 
+  /**
+   *  The Lucene term that this operator iterates over.
+   */
+  private Term luceneTerm;
+
+  /**
+   *  The index segments, and the segment that the docIterator is in now.
+   */
+  private List<LeafReaderContext> leaves;
+  private int leafIndex;
+
+  /**
+   *  The postings of the current segment, or null if the term does not
+   *  occur in the current segment.
+   */
+  private PostingsEnum postings;
+  private int docBase;
+
+  /**
+   *  The internal document id that the docIterator points to now, or
+   *  NO_MORE_DOCS if the iterator is exhausted.
+   */
+  private int docid = DocIdSetIterator.NO_MORE_DOCS;
+
+  private int df = 0;
+  private int ctf = 0;
+
+  /**
+   *  The term's number in the BlockMaxIndex (-1 if it has no blocks,
+   *  or -2 until it is looked up), and the block that was found last.
+   */
+  private int blockTerm = -2;
+  private int blockCursor = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -36,16 +97,401 @@ public class QryIopTerm extends QryIop {
   }
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  Move to the first document at or after target, and return it.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @param target An internal document id.
+   *  @return The internal docid, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+    if (this.invertedList != null) {
+      return super.advance (r, target);
+    }
+
+    if (this.docid < target) {
+      this.nextMatch (target);
+    }
+
+    return this.docID = this.docid;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    if (this.docid <= docid) {
+      this.nextMatch (docid + 1);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    if (this.docid < docid) {
+      this.nextMatch (docid);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.invertedList != null) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.docid = DocIdSetIterator.NO_MORE_DOCS;
+    this.postings = null;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.invertedList != null) {
+      return super.docIteratorGetMatch ();
+    }
+
+    return this.docid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf).
+   */
+  public int docIteratorGetMatchTf () {
+    if (this.invertedList != null) {
+      return super.docIteratorGetMatchTf ();
+    }
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.invertedList != null) {
+      return super.docIteratorHasMatch (r);
+    }
+
+    return (this.docid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Open the term's postings and position the docIterator at the first
+   *  document, or get the inverted list from the PostingsCache if it is
+   *  enabled and reading the whole list is about as cheap as skipping.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    if (PostingsCache.isEnabled () &&
+        ((this.maxAdvances < 0) ||
+         (Idx.getDocFreq (this.field, this.term) <=
+          this.maxAdvances * POSTINGS_BLOCK_SIZE))) {
+      this.invertedList =
+        PostingsCache.get (this.term, this.field, this.requiredPostings);
+      return;
+    }
+
+    this.luceneTerm = new Term (this.field, new BytesRef (this.term));
+    this.df = (int) Idx.getDocFreq (this.field, this.term);
+    this.leaves = Idx.INDEXREADER.leaves ();
+    this.leafIndex = 0;
+    this.postings = null;
+
+    if (this.df < 1) {
+      this.ctf = 0;
+      this.docIteratorFinish ();
+      return;
+    }
+
+    this.ctf = (int) Idx.getTotalTermFreq (this.field, this.term);
+    this.openLeaf ();
+    this.nextMatch (0);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    if (this.invertedList != null) {
+      return super.getCtf ();
+    }
+
+    return this.ctf;
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    if (this.invertedList != null) {
+      return super.getDf ();
+    }
+
+    return this.df;
+  }
+
+  /**
+   *  Find the block of the BlockMaxIndex that covers a document.
+   *  Searches start from the block that was found last, so a sequence
+   *  of increasing docids is cheap.
+   *  @param docid An internal document id.
+   *  @return The block; the term's end block if no document at or
+   *  after docid contains the term; or -1 if the term has no blocks.
+   */
+  private int findBlock (int docid) {
+
+    BlockMaxIndex blockMaxIndex = Idx.getBlockMaxIndex ();
+
+    if (this.blockTerm == -2) {
+      this.blockTerm = (blockMaxIndex == null) ?
+        -1 : blockMaxIndex.findTerm (this.field, this.term);
+
+      if (this.blockTerm >= 0) {
+        this.blockCursor = blockMaxIndex.getFirstBlock (this.blockTerm);
+      }
+    }
+
+    if (this.blockTerm < 0) {
+      return -1;
+    }
+
+    //  Start over if docid is before the block that was found last.
+
+    int first = blockMaxIndex.getFirstBlock (this.blockTerm);
+
+    if ((this.blockCursor > first) &&
+        (blockMaxIndex.getBlockLastDocid (this.blockCursor - 1) >= docid)) {
+      this.blockCursor = first;
+    }
+
+    this.blockCursor = blockMaxIndex.findBlock (this.blockTerm, this.blockCursor, docid);
+    return this.blockCursor;
+  }
+
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxTf (docid).
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+
+    int b = this.findBlock (docid);
+
+    if ((b < 0) || (b == Idx.getBlockMaxIndex ().getEndBlock (this.blockTerm))) {
+      return Integer.MAX_VALUE;
+    }
+
+    return Idx.getBlockMaxIndex ().getBlockLastDocid (b);
+  }
+
+  /**
+   *  Get the largest term frequency (tf) of documents from docid to
+   *  getBlockLastDocid (docid), from the BlockMaxIndex if it has the
+   *  term.
+   *  @param docid An internal document id.
+   *  @return An upper bound on tf in the block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockMaxTf (int docid) throws IOException {
+
+    int b = this.findBlock (docid);
+
+    if (b < 0) {
+      return this.getMaxTf ();
+    }
+
+    if (b == Idx.getBlockMaxIndex ().getEndBlock (this.blockTerm)) {
+      return 0;
+    }
+
+    return Idx.getBlockMaxIndex ().getBlockMaxTf (b);
+  }
+
+  /**
+   *  Get the shortest field length of documents from docid to
+   *  getBlockLastDocid (docid), from the BlockMaxIndex if it has the
+   *  term.
+   *  @param docid An internal document id.
+   *  @return A lower bound on field lengths in the block.
+   */
+  public int getBlockMinLength (int docid) {
+
+    int b = this.findBlock (docid);
+
+    if ((b < 0) || (b == Idx.getBlockMaxIndex ().getEndBlock (this.blockTerm))) {
+      return 0;
+    }
+
+    return Idx.getBlockMaxIndex ().getBlockMinLength (b);
+  }
+
+  /**
+   *  Get the largest term frequency (tf) of the term in any document.
+   *  @return The maximum tf.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMaxTf () throws IOException {
+    if (this.invertedList != null) {
+      return super.getMaxTf ();
+    }
+
+    return Idx.getMaxTermFreq (this.field, this.term);
+  }
+
+  /**
+   *  Estimate the cost of iterating over the term's postings, which
+   *  is its df.
+   *  @return The estimated cost.
+   */
+  public long getCost () {
+    if (this.invertedList != null) {
+      return super.getCost ();
+    }
+
+    return this.df;
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The processed term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Decode the locations of the current document.  Lucene positions
+   *  can only be read once, so QryIop calls this at most once per
+   *  document.
+   */
+  protected void decodeLocations () {
+
+    if (this.requiredPostings != PostingsEnum.POSITIONS) {
+      throw new IllegalStateException
+        ("Locations of " + this + " were not requested.");
+    }
+
+    try {
+      int tf = this.postings.freq ();
+
+      this.locationsEnsureCapacity (tf);
+
+      for (int j = 0; j < tf; j++) {
+        this.locations[j] = this.postings.nextPosition ();
+      }
+
+      this.locationsLength = tf;
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Move the docIterator to the first document with an internal id
+   *  of at least target, skipping segments that end before target
+   *  and using PostingsEnum.advance within a segment.
+   *  @param target An internal document id.
+   */
+  private void nextMatch (int target) {
+
+    try {
+      while (this.leafIndex < this.leaves.size ()) {
+
+        if (this.postings != null) {
+          int leafTarget = Math.max (target - this.docBase, 0);
+          int leafDocid = this.postings.docID ();
+
+          if (leafDocid < leafTarget) {
+            leafDocid = this.postings.advance (leafTarget);
+          }
+
+          if (leafDocid != DocIdSetIterator.NO_MORE_DOCS) {
+            this.docid = this.docBase + leafDocid;
+            this.locIteratorReset ();
+            return;
+          }
+        }
+
+        //  Don't open postings in segments that end before target.
+        //  Idx finds target's segment by binary search.
+
+        this.leafIndex = Math.max (this.leafIndex + 1, Idx.getLeafIndex (target));
+        this.openLeaf ();
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.docIteratorFinish ();
+  }
+
+  /**
+   *  Move to the next document, and return it.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return The internal docid, or NO_MORE_DOCS.
+   */
+  public int nextDoc (RetrievalModel r) {
+    if (this.invertedList != null) {
+      return super.nextDoc (r);
+    }
+
+    return (this.docID == NO_MORE_DOCS) ?
+      NO_MORE_DOCS : this.advance (r, this.docID + 1);
+  }
+
+  /**
+   *  Open the postings of the segment that leafIndex points to now.
+   *  postings is null if the segment doesn't contain the term or if
+   *  there are no more segments.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void openLeaf () throws IOException {
+
+    this.postings = null;
+
+    if (this.leafIndex < this.leaves.size ()) {
+      LeafReaderContext context = this.leaves.get (this.leafIndex);
+      this.docBase = context.docBase;
+      this.postings =
+        context.reader ().postings (this.luceneTerm, this.requiredPostings);
+    }
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
@@ -0,0 +1,127 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The WINDOW/n operator for all retrieval models.  A document matches
+ *  if its arguments occur in any order within a window of n locations,
+ *  i.e., if (maxLocation - minLocation + 1) &lt;= n.  The location of a
+ *  match is the largest location in the window.  Document iteration is
+ *  provided by QryIopProximity.
+ */
+public class QryIopWindow extends QryIopProximity {
+
+  /**
+   *  A min-heap of argument indexes, ordered by each argument's current
+   *  location.
+   */
+  private int[] heap = new int[0];
+
+  /**
+   *  @param distance The size of the window.
+   */
+  public QryIopWindow(int distance) {
+    super (distance);
+  }
+
+  /**
+   *  Build the heap of arguments and return the largest current
+   *  location.
+   *  @return The largest current location of any argument.
+   */
+  private int heapBuild () {
+
+    int n = this.children.length;
+    int maxLoc = Integer.MIN_VALUE;
+
+    for (int i = 0; i < n; i++) {
+      this.heap[i] = i;
+      maxLoc = Math.max (maxLoc, this.argLocations[this.argNext[i]]);
+    }
+
+    for (int k = n / 2 - 1; k >= 0; k--) {
+      this.heapSiftDown (k);
+    }
+
+    return maxLoc;
+  }
+
+  /**
+   *  Restore the heap property below node k.
+   *  @param k A heap node.
+   */
+  private void heapSiftDown (int k) {
+
+    int n = this.children.length;
+    int[] locs = this.argLocations;
+    int node = this.heap[k];
+    int key = locs[this.argNext[node]];
+
+    while (2 * k + 1 < n) {
+      int c = 2 * k + 1;
+
+      if ((c + 1 < n) &&
+          (locs[this.argNext[this.heap[c + 1]]] < locs[this.argNext[this.heap[c]]])) {
+        c ++;
+      }
+
+      if (locs[this.argNext[this.heap[c]]] >= key) {
+        break;
+      }
+
+      this.heap[k] = this.heap[c];
+      k = c;
+    }
+
+    this.heap[k] = node;
+  }
+
+  /**
+   *  Find the minimal covering windows in a single pass over the
+   *  arguments' locations.  The heap gives the argument with the
+   *  smallest current location, and the largest current location is
+   *  tracked as arguments advance.  If the window between them is
+   *  small enough, it is a match, and every argument moves to its next
+   *  location; otherwise the argument with the smallest location moves
+   *  to its next location.
+   */
+  protected void matchLocations () {
+
+    int n = this.children.length;
+    int[] locs = this.argLocations;
+
+    if (this.heap.length < n) {
+      this.heap = new int[n];
+    }
+
+    int maxLoc = this.heapBuild ();
+
+    while (true) {
+      int top = this.heap[0];
+      int minLoc = locs[this.argNext[top]];
+
+      if (maxLoc - minLoc + 1 <= this.distance) {
+        this.addMatch (maxLoc);
+
+        for (int i = 0; i < n; i++) {
+          this.argNext[i] ++;
+
+          if (this.argNext[i] == this.argEnd[i]) {
+            return;
+          }
+        }
+
+        maxLoc = this.heapBuild ();
+      } else {
+        this.argNext[top] ++;
+
+        if (this.argNext[top] == this.argEnd[top]) {
+          return;
+        }
+
+        maxLoc = Math.max (maxLoc, locs[this.argNext[top]]);
+        this.heapSiftDown (0);
+      }
+    }
+  }
+}
@@ -102,9 +102,18 @@ public class QryParser {
       case "#and":
         operator = new QrySopAnd();
         break;
+      case "#sum":
+        operator = new QrySopSum ();
+        break;
+      case "#fields":
+        operator = new QrySopFields ();
+        break;
       case  "#near":
         operator = new QryIopNear(operatorDistance);
         break;
+      case "#window":
+        operator = new QryIopWindow(operatorDistance);
+        break;
 
       default:
 	syntaxError ("Unknown query operator " + operatorName);
@@ -115,6 +124,91 @@ public class QryParser {
     return operator;
   }
   
+  /**
+   *  Confirm that a field is a known field.
+   *  @param field The field name.
+   *  @param token The token that contains the field, for error messages.
+   *  @throws IllegalArgumentException The field is unknown.
+   */
+  private static void checkField (String field, String token)
+    throws IllegalArgumentException {
+
+    if ((field.compareTo("url") != 0) &&
+	(field.compareTo("keywords") != 0) &&
+	(field.compareTo("title") != 0) &&
+	(field.compareTo("body") != 0) &&
+	(field.compareTo("inlink") != 0)) {
+      syntaxError ("Unknown field " + token);
+    }
+  }
+
+  /**
+   *  Add an argument of a #FIELDS operator, e.g., #FIELDS (url:0.1
+   *  title:0.9 apple).  "field:weight" tokens come first; the last
+   *  token is the term, which becomes one TERM argument per field.
+   *  The term can't have a .field suffix.  A term that is a stopword
+   *  adds no arguments.
+   *  @param fieldsOp The #FIELDS operator.
+   *  @param token The token consumed from the query string.
+   *  @param isLast True if the token is the operator's last argument.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
+   */
+  private static void addFieldsArg (QrySopFields fieldsOp, String token,
+                                    boolean isLast)
+    throws IOException, IllegalArgumentException {
+
+    int delimiter = token.indexOf (':');
+    List<String> fields = fieldsOp.getFields ();
+
+    //  Only the last token is the term.
+
+    if ((delimiter >= 0) == isLast) {
+      syntaxError ("#FIELDS requires field:weight arguments and one term:  " +
+                   token);
+    }
+
+    if (delimiter >= 0) {			// field:weight
+      String field = token.substring (0, delimiter).toLowerCase ();
+      double weight = 0.0;
+
+      checkField (field, token);
+
+      try {
+        weight = Double.parseDouble (token.substring (delimiter + 1));
+      } catch (NumberFormatException e) {
+        syntaxError ("Invalid #FIELDS weight " + token);
+      }
+
+      if (fields.contains (field)) {
+        syntaxError ("Duplicate #FIELDS field " + token);
+      }
+
+      fieldsOp.addField (field, weight);
+      return;
+    }
+
+    if (fields.isEmpty ()) {
+      syntaxError ("#FIELDS requires field:weight arguments and one term");
+    }
+
+    if (token.indexOf ('.') >= 0) {
+      syntaxError ("#FIELDS terms can't have a .field suffix:  " + token);
+    }
+
+    String t[] = tokenizeString (token);
+
+    if (t.length > 1) {
+      syntaxError ("#FIELDS requires a single term:  " + token);
+    }
+
+    for (int j = 0; j < t.length; j++) {
+      for (String field : fields) {
+        fieldsOp.appendArg (new QryIopTerm (t[j], field));
+      }
+    }
+  }
+
   /**
    *  Create one or more terms from a token.  The token may contain
    *  dashes or other punctuation b(e.g., near-death) and/or a field
@@ -140,13 +234,7 @@ public class QryParser {
 
     //  Confirm that the field is a known field.
 
-    if ((field.compareTo("url") != 0) &&
-	(field.compareTo("keywords") != 0) &&
-	(field.compareTo("title") != 0) &&
-	(field.compareTo("body") != 0) &&
-	(field.compareTo("inlink") != 0)) {
-      syntaxError ("Unknown field " + token);
-    }
+    checkField (field, token);
 
     //  Lexical processing, stopwords, stemming.  A loop is used
     //  just in case a term (e.g., "near-death") gets tokenized into
@@ -241,11 +329,11 @@ public class QryParser {
       return null;
     }
 
-    //  Only SCORE operators can have a single argument.  Other
+    //  Only SCORE and FIELDS operators can have a single argument.  Other
     //  query operators that have just one argument are deleted.
 
     if ((q.args.size() == 1) &&
-        (! (q instanceof QrySopScore))) {
+        (! (q instanceof QrySopScore || q instanceof QrySopFields))) {
       q = q.args.get (0);
     }
 
@@ -316,6 +404,20 @@ public class QryParser {
       Qry[] qargs = null;
       PopData<String,String> p;
 
+      //  #FIELDS arguments are "field:weight" tokens and a term.
+
+      if (queryTree instanceof QrySopFields) {
+	  if (queryString.charAt(0) == '#') {
+	    syntaxError ("#FIELDS arguments can't be subqueries");
+	  }
+
+	  p = popTerm (queryString);
+	  queryString = p.getRemaining().trim();
+	  addFieldsArg ((QrySopFields) queryTree, p.getPopped(),
+			queryString.length() == 0);
+	  continue;
+      }
+
       if (queryString.charAt(0) == '#') {	// Subquery
 	  p = popSubquery (queryString);
 	  qargs = new Qry[1];
@@ -0,0 +1,219 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Choose how to evaluate a query.  Document-at-a-time (DAAT)
+ *  evaluation with the query operators handles any query.  Flat
+ *  queries of terms can also be evaluated term-at-a-time (TAAT),
+ *  which reads each inverted list once into an array of accumulators,
+ *  and unranked Boolean queries can be evaluated with bitsets.
+ *  <p>
+ *  The cost model counts postings, using document frequencies (df).
+ *  TAAT reads every posting of every term.  DAAT skips through the
+ *  inverted lists of a conjunction, so it reads about
+ *  n * min(df) postings for n arguments, but it makes several
+ *  virtual calls per posting; a disjunction reads every posting.
+ *  Bitsets read every posting of every leaf, and then combine one
+ *  word per 64 documents for each argument of each operator.
+ *  </p>
+ */
+public class QryPlanner {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The relative cost of a posting in each evaluation strategy, and
+   *  of combining one bitset word.
+   */
+  private static final double DAAT_POSTING_COST = 4.0;
+  private static final double TAAT_POSTING_COST = 1.0;
+  private static final double BITSET_POSTING_COST = 1.0;
+  private static final double BITSET_WORD_COST = 0.25;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Choose an evaluation strategy for a query, and log the choice.
+   *  @param q A query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The evaluation strategy, e.g., RetrievalModel.EVALUATOR_TAAT.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String chooseEvaluator (QrySop q, RetrievalModel r)
+    throws IOException {
+
+    String evaluator = RetrievalModel.EVALUATOR_DAAT;
+    double daatCost = DAAT_POSTING_COST * getDaatPostings (q);
+    double bestCost = daatCost;
+    StringBuilder costs = new StringBuilder ();
+
+    costs.append ("daat cost=").append ((long) daatCost);
+
+    List<QryIopTerm> terms = getFlatTerms (q);
+
+    if ((terms != null) && TaatEvaluator.isSupported (r)) {
+      long sumDf = 0;
+
+      for (QryIopTerm term : terms) {
+        sumDf += Idx.getDocFreq (term.getField (), term.getTerm ());
+      }
+
+      double taatCost = TAAT_POSTING_COST * sumDf;
+
+      costs.append (", taat cost=").append ((long) taatCost);
+
+      if (taatCost < bestCost) {
+        evaluator = RetrievalModel.EVALUATOR_TAAT;
+        bestCost = taatCost;
+      }
+    }
+
+    if (BitsetEvaluator.isSupported (q, r)) {
+      long words = (Idx.INDEXREADER.maxDoc () + 63) >>> 6;
+      double bitsetCost = getBitsetCost (q, words);
+
+      costs.append (", bitset cost=").append ((long) bitsetCost);
+
+      if (bitsetCost < bestCost) {
+        evaluator = RetrievalModel.EVALUATOR_BITSET;
+        bestCost = bitsetCost;
+      }
+    }
+
+    System.out.println ("    Plan:  " + evaluator + " (" + costs + ")");
+
+    return evaluator;
+  }
+
+  /**
+   *  Estimate the cost of evaluating a query that BitsetEvaluator
+   *  supports.
+   *  @param q A query.
+   *  @param words The number of words in a bitset.
+   *  @return The estimated cost.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static double getBitsetCost (Qry q, long words)
+    throws IOException {
+
+    //  Term leaves set one bit per posting.  Other leaves are
+    //  iterated with their docIterators.
+
+    if (q instanceof QrySopScore) {
+      Qry arg = q.args.get (0);
+
+      if (arg instanceof QryIopTerm) {
+        return BITSET_POSTING_COST * getDfEstimate (arg);
+      }
+
+      return DAAT_POSTING_COST * getDaatPostings (arg);
+    }
+
+    double cost = 0;
+
+    for (Qry q_i : q.args) {
+      cost += getBitsetCost (q_i, words) + BITSET_WORD_COST * words;
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Estimate the number of postings that DAAT evaluation of a query
+   *  reads.  Arguments of conjunctions (#AND and proximity operators)
+   *  skip to the matches of the rarest argument; other operators
+   *  read all of their arguments' postings.
+   *  @param q A query.
+   *  @return The estimated number of postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static long getDaatPostings (Qry q) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      return getDfEstimate (q);
+    }
+
+    long postings = 0;
+
+    if ((q instanceof QrySopAnd) || (q instanceof QryIopProximity)) {
+      long minDf = Long.MAX_VALUE;
+
+      for (Qry q_i : q.args) {
+        minDf = Math.min (minDf, getDfEstimate (q_i));
+      }
+
+      for (Qry q_i : q.args) {
+        postings += Math.min (getDaatPostings (q_i), minDf);
+      }
+    } else {
+      for (Qry q_i : q.args) {
+        postings += getDaatPostings (q_i);
+      }
+    }
+
+    return postings;
+  }
+
+  /**
+   *  Estimate the number of documents that a query matches before it
+   *  is initialized, from the index's document frequencies.  This is
+   *  like Qry.getCost, which needs initialized query operators.
+   *  @param q A query.
+   *  @return The estimated df.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getDfEstimate (Qry q) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm term = (QryIopTerm) q;
+      return Idx.getDocFreq (term.getField (), term.getTerm ());
+    }
+
+    boolean isConjunction =
+      ((q instanceof QrySopAnd) || (q instanceof QryIopProximity));
+    long df = isConjunction ? Long.MAX_VALUE : 0;
+
+    for (Qry q_i : q.args) {
+      long df_i = getDfEstimate (q_i);
+      df = isConjunction ? Math.min (df, df_i) : df + df_i;
+    }
+
+    return df;
+  }
+
+  /**
+   *  Get the terms of a flat query:  a term, or an #AND or #OR whose
+   *  arguments are all terms.
+   *  @param q A query.
+   *  @return The query's terms, in argument order, or null if the
+   *  query isn't flat.
+   */
+  public static List<QryIopTerm> getFlatTerms (QrySop q) {
+
+    List<Qry> args;
+
+    if (q instanceof QrySopScore) {
+      args = Collections.singletonList ((Qry) q);
+    } else if ((q instanceof QrySopAnd) || (q instanceof QrySopOr)) {
+      args = q.args;
+    } else {
+      return null;
+    }
+
+    List<QryIopTerm> terms = new ArrayList<QryIopTerm> (args.size ());
+
+    for (Qry arg : args) {
+      if (! ((arg instanceof QrySopScore) &&
+             (arg.args.get (0) instanceof QryIopTerm))) {
+        return null;
+      }
+
+      terms.add ((QryIopTerm) arg.args.get (0));
+    }
+
+    return terms;
+  }
+}
@@ -2,6 +2,7 @@
  *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 /**
  *  The root class of all query operators that use a retrieval model
@@ -21,6 +22,461 @@ public abstract class QrySop extends Qry {
    *  implement.
    */
 
+  /**
+   *  The score that a document must reach to be useful to the caller,
+   *  e.g., the threshold of the caller's TopKCollector.  Dynamic
+   *  pruning strategies skip documents whose scores can't reach it.
+   *  See setScoreThreshold.
+   */
+  protected double scoreThreshold = Double.NEGATIVE_INFINITY;
+
+  /**
+   *  Dynamic pruning state:  the strategy in use (null until pruning
+   *  is first used), an upper bound on each argument's score, the
+   *  current docid of each argument, an order of the arguments (by
+   *  docid for WAND, by bound for MaxScore), and counters for
+   *  getPruningStats.
+   */
+  private String pruningStrategy = null;
+  private double[] pruningBounds;
+  private int[] pruningDocids;
+  private int[] pruningOrder;
+  private long pruningScored = 0;
+  private long pruningSkipped = 0;
+
+  /**
+   *  True if the pruning drivers move the arguments with advance and
+   *  docID, false if they use the docIterator methods.  It follows
+   *  the protocol that this query operator is driven by.
+   */
+  private boolean pruningNative = false;
+
+  /**
+   *  MaxScore state:  the combined bounds of the first j arguments in
+   *  bound order, the threshold that the arguments were last
+   *  partitioned for, and the first essential argument in bound order.
+   */
+  private double[] maxScorePrefixBounds;
+  private double maxScoreThreshold = Double.NaN;
+  private int maxScoreEssential = 0;
+
+  /**
+   *  An instantiation of advance that uses the dynamic pruning
+   *  strategy that the retrieval model selects; some subclasses may
+   *  choose to use this implementation.  Arguments that are behind
+   *  target are advanced to it, and then the pruning driver returns
+   *  its pivot.  The arguments are moved with advance, so each
+   *  document costs about one virtual call per argument that moves.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @param isSum True if argument scores are added, false if the
+   *  score is their maximum.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  protected int advancePruned (RetrievalModel r, int target, boolean isSum) {
+
+    if (this.docID >= target) {
+      return this.docID;
+    }
+
+    this.pruningNative = true;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      Qry q_i = this.args.get (i);
+
+      if (q_i.docID () < target) {
+        q_i.advance (r, target);
+      }
+    }
+
+    return this.setDocID (this.pruningNext (r, isSum));
+  }
+
+  /**
+   *  An instantiation of docIteratorHasMatch that uses the dynamic
+   *  pruning strategy that the retrieval model selects; some
+   *  subclasses may choose to use this implementation.
+   *  @param r The retrieval model that determines what is a match
+   *  @param isSum True if argument scores are added, false if the
+   *  score is their maximum.
+   *  @return True if the query matches, otherwise false.
+   */
+  protected boolean docIteratorHasMatchPruned (RetrievalModel r, boolean isSum) {
+
+    this.pruningNative = false;
+
+    int docid = this.pruningNext (r, isSum);
+
+    if (docid == NO_MORE_DOCS) {
+      return false;
+    }
+
+    this.docIteratorSetMatchCache (docid);
+    return true;
+  }
+
+  /**
+   *  Find the next match with MaxScore dynamic pruning, which skips
+   *  documents whose scores can't reach the score threshold.  The arguments are sorted by their getMaxScore
+   *  bounds.  The longest prefix whose combined bound is below the
+   *  threshold is non-essential:  a document that matches only those
+   *  arguments can't reach the threshold.  Candidate documents come
+   *  from the essential arguments only; the non-essential arguments
+   *  are then advanced to the candidate so that getScore sees every
+   *  argument that matches it.  Bounds are combined as in
+   *  pruningNextWand.
+   *  @param r The retrieval model that determines what is a match
+   *  @param isSum True if argument scores are added, false if the
+   *  score is their maximum.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  private int pruningNextMaxScore (RetrievalModel r, boolean isSum) {
+
+    int n = this.args.size ();
+
+    if (this.pruningStrategy == null) {
+      this.pruningInitialize (r, "MaxScore");
+
+      //  Sort the arguments by bound, and combine the bounds of each
+      //  prefix.  The bounds are fixed, so this is done once.
+
+      for (int j = 1; j < n; j++) {
+        int i = this.pruningOrder[j];
+        int k = j - 1;
+
+        while ((k >= 0) &&
+               (this.pruningBounds[this.pruningOrder[k]] > this.pruningBounds[i])) {
+          this.pruningOrder[k + 1] = this.pruningOrder[k];
+          k --;
+        }
+
+        this.pruningOrder[k + 1] = i;
+      }
+
+      this.maxScorePrefixBounds = new double[n + 1];
+      this.maxScorePrefixBounds[0] = (isSum) ? 0.0 : Double.NEGATIVE_INFINITY;
+
+      for (int j = 0; j < n; j++) {
+        double bound = this.pruningBounds[this.pruningOrder[j]];
+
+        this.maxScorePrefixBounds[j + 1] = (isSum) ?
+          this.maxScorePrefixBounds[j] + bound :
+          Math.max (this.maxScorePrefixBounds[j], bound);
+      }
+    }
+
+    //  Partition the arguments again when the threshold changes.  A
+    //  document with a score equal to the threshold may still be
+    //  collected, so a prefix is non-essential only if its bound is
+    //  below the threshold.
+
+    if (this.scoreThreshold != this.maxScoreThreshold) {
+      int essential = 0;
+
+      while ((essential < n) &&
+             (this.maxScorePrefixBounds[essential + 1] < this.scoreThreshold)) {
+        essential ++;
+      }
+
+      this.maxScoreThreshold = this.scoreThreshold;
+      this.maxScoreEssential = essential;
+    }
+
+    //  The candidate is the smallest docid of the essential arguments.
+
+    int candidate = NO_MORE_DOCS;
+
+    for (int j = this.maxScoreEssential; j < n; j++) {
+      candidate = Math.min (candidate,
+                            this.pruningArgDocid (r, this.pruningOrder[j]));
+    }
+
+    if (candidate == NO_MORE_DOCS) {	// No remaining document can
+      return NO_MORE_DOCS;		// reach the threshold.
+    }
+
+    //  Probe the non-essential arguments.  Documents that they skip
+    //  over aren't in any essential argument, so they can't reach the
+    //  threshold.  An argument that moves must match again, so that
+    //  its match cache shows getScore whether it is on candidate.
+
+    int numSkipped = 0;
+
+    for (int j = 0; j < this.maxScoreEssential; j++) {
+      int i = this.pruningOrder[j];
+      int docid = this.pruningArgDocid (r, i);
+
+      if (docid < candidate) {
+        this.pruningDocids[numSkipped++] = docid;
+        this.pruningArgAdvance (r, i, candidate);
+        this.pruningArgDocid (r, i);
+      }
+    }
+
+    this.pruningSkipped += QrySop.countDistinct (this.pruningDocids, numSkipped);
+    this.pruningScored ++;
+    return candidate;
+  }
+
+  /**
+   *  Find the next match with WAND dynamic pruning, which skips
+   *  documents whose scores can't reach the score threshold;
+   *  otherwise it matches the same documents as advanceMin.  A document's score must be bounded by
+   *  combining the getMaxScore bounds of the arguments that match it,
+   *  either by adding them (isSum) or by taking their maximum.  Sums
+   *  assume that arguments that don't match contribute nothing.
+   *  @param r The retrieval model that determines what is a match
+   *  @param isSum True if argument scores are added, false if the
+   *  score is their maximum.
+   *  @return The internal docid of the match (the pivot's docid), or
+   *  NO_MORE_DOCS.
+   */
+  private int pruningNextWand (RetrievalModel r, boolean isSum) {
+
+    if (this.pruningStrategy == null) {
+      this.pruningInitialize (r, "WAND");
+    }
+
+    while (true) {
+
+      this.pruningSortByDocid (r);
+
+      int pivot = this.pruningFindPivot (isSum);
+
+      if (pivot < 0) {			// No remaining document can
+        return NO_MORE_DOCS;		// reach the threshold.
+      }
+
+      int pivotDocid = this.pruningDocids[this.pruningOrder[pivot]];
+
+      if (this.pruningDocids[this.pruningOrder[0]] == pivotDocid) {
+        this.pruningScored ++;
+        return pivotDocid;
+      }
+
+      //  Documents before pivotDocid only match arguments before the
+      //  pivot, so they can't reach the threshold.  Skip them.
+
+      this.pruningAdvance (r, pivot, pivotDocid);
+    }
+  }
+
+  /**
+   *  Find the next match with Block-Max WAND dynamic pruning.  It is
+   *  WAND with a second, shallow check:  when
+   *  the pivot is found, the arguments' getBlockMaxScore bounds, which
+   *  are usually much tighter than their getMaxScore bounds, must also
+   *  reach the threshold.  If they don't, no document up to the end of
+   *  the first block to end can reach it, so those documents are
+   *  skipped without being scored.  Block bounds come from the
+   *  BlockMaxIndex when it has been built; otherwise this is WAND.
+   *  Bounds are combined as in pruningNextWand.
+   *  @param r The retrieval model that determines what is a match
+   *  @param isSum True if argument scores are added, false if the
+   *  score is their maximum.
+   *  @return The internal docid of the match (the pivot's docid), or
+   *  NO_MORE_DOCS.
+   */
+  private int pruningNextBlockMaxWand (RetrievalModel r, boolean isSum) {
+
+    int n = this.args.size ();
+
+    if (this.pruningStrategy == null) {
+      this.pruningInitialize (r, "BMW");
+    }
+
+    try {
+      while (true) {
+
+        this.pruningSortByDocid (r);
+
+        int pivot = this.pruningFindPivot (isSum);
+
+        if (pivot < 0) {		// No remaining document can
+          return NO_MORE_DOCS;		// reach the threshold.
+        }
+
+        //  Arguments after the pivot that are also on pivotDocid
+        //  contribute to its score, so they are part of the check.
+
+        int pivotDocid = this.pruningDocids[this.pruningOrder[pivot]];
+
+        while ((pivot + 1 < n) &&
+               (this.pruningDocids[this.pruningOrder[pivot + 1]] == pivotDocid)) {
+          pivot ++;
+        }
+
+        //  Shallow check:  bound the scores of the pivot's blocks
+        //  without moving the iterators.
+
+        double bound = (isSum) ? 0.0 : Double.NEGATIVE_INFINITY;
+
+        for (int j = 0; j <= pivot; j++) {
+          QrySop q_j = (QrySop) this.args.get (this.pruningOrder[j]);
+          double blockBound = q_j.getBlockMaxScore (r, pivotDocid);
+
+          bound = (isSum) ? bound + blockBound : Math.max (bound, blockBound);
+        }
+
+        if (bound >= this.scoreThreshold) {
+          if (this.pruningDocids[this.pruningOrder[0]] == pivotDocid) {
+            this.pruningScored ++;
+            return pivotDocid;
+          }
+
+          this.pruningAdvance (r, pivot, pivotDocid);
+          continue;
+        }
+
+        //  No document from pivotDocid to the end of the first block
+        //  to end can reach the threshold, and documents before
+        //  pivotDocid can't either.  Skip to the next document that
+        //  is in a new block or in an argument after the pivot.
+
+        int next = (pivot + 1 < n) ?
+          this.pruningDocids[this.pruningOrder[pivot + 1]] : NO_MORE_DOCS;
+
+        for (int j = 0; j <= pivot; j++) {
+          QrySop q_j = (QrySop) this.args.get (this.pruningOrder[j]);
+          int last = q_j.getBlockLastDocid (pivotDocid);
+
+          if (last < next - 1) {
+            next = last + 1;
+          }
+        }
+
+        if (next == NO_MORE_DOCS) {
+          return NO_MORE_DOCS;
+        }
+
+        this.pruningAdvance (r, pivot + 1, next);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxScore
+   *  (r, docid).  The default is one block for all documents.
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get an upper bound on the scores of the documents from docid to
+   *  getBlockLastDocid (docid).  Block-Max WAND uses it.  The default
+   *  is the bound for all documents (see getMaxScore).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return An upper bound on document scores in the block.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getBlockMaxScore (RetrievalModel r, int docid)
+    throws IOException {
+    return this.getMaxScore (r);
+  }
+
+  /**
+   *  Get an upper bound on the score of any document that this query
+   *  operator matches.  Dynamic pruning strategies use it.  The
+   *  default is no bound (infinity), which disables pruning.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return An upper bound on document scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get a one-line summary of the work that dynamic pruning did in
+   *  this query operator and its descendants.  The number of skipped documents counts the distinct documents that
+   *  arguments were positioned on and that were passed over without
+   *  being scored; documents that skip lists jumped over aren't
+   *  counted, so it is a lower bound.
+   *  @return The summary, or null if this operator didn't prune.
+   */
+  public String getPruningStats () {
+
+    long[] counts = new long[3];
+
+    this.getPruningCounts (counts);
+
+    if (counts[0] == 0) {
+      return null;
+    }
+
+    return (this.getPruningStrategy () + ":  operators=" + counts[0] +
+            " scored=" + counts[1] +
+            " skipped=" + counts[2]);
+  }
+
+  /**
+   *  Add the pruning counters of this query operator and its
+   *  descendants.
+   *  @param counts The number of operators that pruned, documents
+   *  scored, and documents skipped.
+   */
+  private void getPruningCounts (long[] counts) {
+
+    if (this.pruningStrategy != null) {
+      counts[0] ++;
+      counts[1] += this.pruningScored;
+      counts[2] += this.pruningSkipped;
+    }
+
+    for (Qry q_i : this.args) {
+      if (q_i instanceof QrySop) {
+        ((QrySop) q_i).getPruningCounts (counts);
+      }
+    }
+  }
+
+  /**
+   *  Get the name of the dynamic pruning strategy that this query
+   *  operator or its first pruning descendant used.
+   *  @return The strategy name, or null if nothing pruned.
+   */
+  private String getPruningStrategy () {
+
+    if (this.pruningStrategy != null) {
+      return this.pruningStrategy;
+    }
+
+    for (Qry q_i : this.args) {
+      if (q_i instanceof QrySop) {
+        String strategy = ((QrySop) q_i).getPruningStrategy ();
+
+        if (strategy != null) {
+          return strategy;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   *  Get a score for a document that this query operator doesn't
+   *  match.  Retrieval models that score the union of the arguments'
+   *  documents (e.g., Indri) use it for arguments that aren't on the
+   *  document.  The default is that there is no default score.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal docid of the document that is being scored.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (RetrievalModel r, int docid)
+    throws IOException {
+    throw new IllegalArgumentException
+      (r.getClass().getName() + " doesn't support default scores for " +
+       this.getClass().getName());
+  }
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -30,6 +486,26 @@ public abstract class QrySop extends Qry {
   public abstract double getScore (RetrievalModel r)
     throws IOException;
 
+  /**
+   *  Get an argument's score for a document:  its score if it is on
+   *  the document, otherwise its default score.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param q_i A query argument.
+   *  @param docid The internal docid of the document that is being scored.
+   *  @return The argument's score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected static double getScoreOrDefault (RetrievalModel r, QrySop q_i, int docid)
+    throws IOException {
+
+    if (q_i.docIteratorHasMatchCache () &&
+        (q_i.docIteratorGetMatch () == docid)) {
+      return q_i.getScore (r);
+    }
+
+    return q_i.getDefaultScore (r, docid);
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -40,7 +516,216 @@ public abstract class QrySop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
     for (Qry q_i: this.args) {
+      q_i.limitAdvances (this.maxAdvances);
       q_i.initialize (r);
     }
+
+    this.docID = -1;
+  }
+
+  /**
+   *  Prepare the dynamic pruning state:  get an upper bound on each
+   *  argument's score.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param strategy The name of the pruning strategy.
+   */
+  private void pruningInitialize (RetrievalModel r, String strategy) {
+
+    int n = this.args.size ();
+
+    this.pruningBounds = new double[n];
+    this.pruningDocids = new int[n];
+    this.pruningOrder = new int[n];
+
+    try {
+      for (int i = 0; i < n; i++) {
+        this.pruningBounds[i] = ((QrySop) this.args.get (i)).getMaxScore (r);
+        this.pruningOrder[i] = i;
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.pruningStrategy = strategy;
+  }
+
+  /**
+   *  Move argument i to the first match at or after target, using the
+   *  protocol that the pruning driver was entered with.
+   *  @param r The retrieval model that determines what is a match
+   *  @param i The index of the argument.
+   *  @param target An internal document id.
+   */
+  private void pruningArgAdvance (RetrievalModel r, int i, int target) {
+
+    if (this.pruningNative) {
+      this.args.get (i).advance (r, target);
+    } else {
+      this.args.get (i).docIteratorAdvanceTo (target);
+    }
+  }
+
+  /**
+   *  Get the current docid of argument i, using the protocol that the
+   *  pruning driver was entered with.
+   *  @param r The retrieval model that determines what is a match
+   *  @param i The index of the argument.
+   *  @return The internal docid, or NO_MORE_DOCS if the argument is
+   *  exhausted.
+   */
+  private int pruningArgDocid (RetrievalModel r, int i) {
+
+    Qry q_i = this.args.get (i);
+
+    if (this.pruningNative) {
+      return q_i.docID ();
+    }
+
+    return (q_i.docIteratorHasMatch (r)) ?
+      q_i.docIteratorGetMatch () : NO_MORE_DOCS;
+  }
+
+  /**
+   *  Advance the first n arguments in docid order to target, if they
+   *  are before it, and count the distinct documents that they were
+   *  on as skipped.
+   *  @param r The retrieval model that determines what is a match
+   *  @param n The number of arguments to advance.
+   *  @param target An internal document id.
+   */
+  private void pruningAdvance (RetrievalModel r, int n, int target) {
+
+    int lastSkipped = Qry.INVALID_DOCID;
+
+    for (int j = 0; j < n; j++) {
+      int i = this.pruningOrder[j];
+
+      if (this.pruningDocids[i] < target) {
+        if (this.pruningDocids[i] != lastSkipped) {
+          lastSkipped = this.pruningDocids[i];
+          this.pruningSkipped ++;
+        }
+
+        this.pruningArgAdvance (r, i, target);
+      }
+    }
+  }
+
+  /**
+   *  Find the WAND pivot:  the first argument in docid order at which
+   *  the combined getMaxScore bound reaches the threshold.  A document
+   *  with a score equal to the threshold may still be collected (ties
+   *  are broken by external docid), so it is not skipped.
+   *  @param isSum True if argument scores are added, false if the
+   *  score is their maximum.
+   *  @return The pivot's position in pruningOrder, or -1 if no
+   *  remaining document can reach the threshold.
+   */
+  private int pruningFindPivot (boolean isSum) {
+
+    double bound = (isSum) ? 0.0 : Double.NEGATIVE_INFINITY;
+
+    for (int j = 0; j < this.args.size (); j++) {
+      int i = this.pruningOrder[j];
+
+      if (this.pruningDocids[i] == NO_MORE_DOCS) {
+        break;
+      }
+
+      bound = (isSum) ?
+        bound + this.pruningBounds[i] : Math.max (bound, this.pruningBounds[i]);
+
+      if (bound >= this.scoreThreshold) {
+        return j;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Find the next match with the dynamic pruning strategy that the
+   *  retrieval model selects, starting from the arguments' current
+   *  positions.
+   *  @param r The retrieval model that determines what is a match
+   *  @param isSum True if argument scores are added, false if the
+   *  score is their maximum.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  private int pruningNext (RetrievalModel r, boolean isSum) {
+
+    String pruning = r.getDynamicPruning ();
+
+    if (pruning.equals (RetrievalModel.PRUNING_MAXSCORE)) {
+      return this.pruningNextMaxScore (r, isSum);
+    } else if (pruning.equals (RetrievalModel.PRUNING_BMW)) {
+      return this.pruningNextBlockMaxWand (r, isSum);
+    } else {
+      return this.pruningNextWand (r, isSum);
+    }
+  }
+
+  /**
+   *  Sort the arguments by their current docids; exhausted arguments
+   *  sort last.  The order changes little between calls, so insertion
+   *  sort is fast.
+   *  @param r The retrieval model that determines what is a match
+   */
+  private void pruningSortByDocid (RetrievalModel r) {
+
+    int n = this.args.size ();
+
+    for (int i = 0; i < n; i++) {
+      this.pruningDocids[i] = this.pruningArgDocid (r, i);
+    }
+
+    for (int j = 1; j < n; j++) {
+      int i = this.pruningOrder[j];
+      int k = j - 1;
+
+      while ((k >= 0) && (this.pruningDocids[this.pruningOrder[k]] > this.pruningDocids[i])) {
+        this.pruningOrder[k + 1] = this.pruningOrder[k];
+        k --;
+      }
+
+      this.pruningOrder[k + 1] = i;
+    }
+  }
+
+  /**
+   *  Count the distinct values in an array.
+   *  @param a The array.
+   *  @param n The number of values in the array.
+   *  @return The number of distinct values in a[0..n).
+   */
+  private static int countDistinct (int[] a, int n) {
+
+    int count = 0;
+
+    for (int i = 0; i < n; i++) {
+      int j = 0;
+
+      while ((j < i) && (a[j] != a[i])) {
+        j ++;
+      }
+
+      if (j == i) {
+        count ++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   *  Set the score that a document must reach to be useful to the
+   *  caller.  The caller may raise it during evaluation, e.g., each
+   *  time its top k improves.  Operators whose scores can't exceed
+   *  their arguments' scores may pass it to their arguments.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param threshold The score threshold.
+   */
+  public void setScoreThreshold (RetrievalModel r, double threshold) {
+    this.scoreThreshold = threshold;
   }
 }
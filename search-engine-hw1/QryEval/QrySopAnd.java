@@ -10,14 +10,240 @@ import java.io.*;
 public class QrySopAnd extends QrySop {
 
     /**
-     *  Indicates whether the query has a match.
+     *  An upper bound on document scores, or NaN until it is needed.
+     */
+    private double maxScore = Double.NaN;
+
+    /**
+     *  Indicates whether the query has a match.  With dynamic pruning,
+     *  a ranked Boolean AND stops when its upper bound falls below the
+     *  score threshold.  (Every argument of a conjunction is essential,
+     *  so this is all that MaxScore can do here; arguments that are
+     *  disjunctions prune with the threshold that setScoreThreshold
+     *  passes to them.)  An Indri AND matches every document that
+     *  any argument matches; arguments that aren't on the document
+     *  contribute their default scores.
      *  @param r The retrieval model that determines what is a match
      *  @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch (RetrievalModel r) {
+
+        if (r instanceof RetrievalModelIndri) {
+            return this.docIteratorHasMatchMin (r);
+        }
+
+        if (this.isBelowThreshold (r)) {
+            return false;
+        }
+
         return this.docIteratorHasMatchAll (r);
     }
 
+    /**
+     *  Move to the first match at or after target, and return it.  The
+     *  arguments leapfrog in the order of docIteratorGetAllOrder; see
+     *  docIteratorHasMatchAll.  An Indri AND visits the union of the
+     *  arguments' documents.
+     *  @param r The retrieval model that determines what is a match
+     *  @param target An internal document id.
+     *  @return The internal docid of the match, or NO_MORE_DOCS.
+     */
+    public int advance (RetrievalModel r, int target) {
+
+        if (r instanceof RetrievalModelIndri) {
+            return this.advanceMin (r, target);
+        }
+
+        if (this.docID >= target) {
+            return this.docID;
+        }
+
+        if (this.isBelowThreshold (r)) {
+            return this.setDocID (NO_MORE_DOCS);
+        }
+
+        int[] order = this.docIteratorGetAllOrder ();
+        int n = order.length;
+        int candidate = this.args.get (order[0]).advance (r, target);
+        int agreed = 1;
+
+        for (int i = 1 % n;
+             (agreed < n) && (candidate != NO_MORE_DOCS);
+             i = (i + 1) % n) {
+            int docid_i = this.args.get (order[i]).advance (r, candidate);
+
+            if (docid_i == candidate) {
+                agreed ++;
+            } else {
+                candidate = docid_i;
+                agreed = 1;
+            }
+        }
+
+        return this.setDocID (candidate);
+    }
+
+    /**
+     *  Indicates whether dynamic pruning can stop the conjunction
+     *  because its upper bound is below the score threshold.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True if no more documents can reach the threshold.
+     */
+    private boolean isBelowThreshold (RetrievalModel r) {
+
+        if ((r instanceof RetrievalModelRankedBoolean) &&
+            (! r.getDynamicPruning ().equals (RetrievalModel.PRUNING_NONE)) &&
+            (this.scoreThreshold > Double.NEGATIVE_INFINITY)) {
+
+            if (Double.isNaN (this.maxScore)) {
+                try {
+                    this.maxScore = this.getMaxScore (r);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException (ex);
+                }
+            }
+
+            return (this.maxScore < this.scoreThreshold);
+        }
+
+        return false;
+    }
+
+    /**
+     *  Initialize the query operator (and its arguments), including
+     *  any internal iterators.  A Boolean AND moves its arguments to
+     *  the matches of the rarest one; an Indri AND reads them all.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize (RetrievalModel r) throws IOException {
+
+        if (! (r instanceof RetrievalModelIndri)) {
+            this.limitArgAdvances ();
+        }
+
+        super.initialize (r);
+    }
+
+    /**
+     *  Move to the next match, and return it.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The internal docid of the match, or NO_MORE_DOCS.
+     */
+    public int nextDoc (RetrievalModel r) {
+        return (this.docID == NO_MORE_DOCS) ?
+            NO_MORE_DOCS : this.advance (r, this.docID + 1);
+    }
+
+    /**
+     *  Estimate the cost of iterating over this query operator's
+     *  matches.  Matches are in the intersection of the arguments, so
+     *  the cheapest argument bounds the cost.
+     *  @return The estimated cost.
+     */
+    public long getCost () {
+
+        long cost = Long.MAX_VALUE;
+
+        for (Qry q_i : this.args) {
+            cost = Math.min (cost, q_i.getCost ());
+        }
+
+        return cost;
+    }
+
+    /**
+     *  Get the last docid of the block that bounds getBlockMaxScore
+     *  (r, docid), which is where the first argument's block ends.
+     *  @param docid An internal document id.
+     *  @return The last internal docid of the block.
+     */
+    public int getBlockLastDocid (int docid) {
+
+        int last = Integer.MAX_VALUE;
+
+        for (Qry q_i : this.args) {
+            last = Math.min (last, ((QrySop) q_i).getBlockLastDocid (docid));
+        }
+
+        return last;
+    }
+
+    /**
+     *  Get an upper bound on the scores of the documents from docid to
+     *  getBlockLastDocid (docid).
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid An internal document id.
+     *  @return An upper bound on document scores in the block.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getBlockMaxScore (RetrievalModel r, int docid)
+        throws IOException {
+
+        if (r instanceof RetrievalModelRankedBoolean) {
+            double maxScore = Double.MAX_VALUE;
+
+            for (Qry q_i : this.args) {
+                maxScore = Math.min (maxScore, ((QrySop) q_i).getBlockMaxScore (r, docid));
+            }
+
+            return maxScore;
+        }
+
+        return super.getBlockMaxScore (r, docid);
+    }
+
+    /**
+     *  Get an upper bound on the score of any document that this query
+     *  operator matches.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return An upper bound on document scores.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getMaxScore (RetrievalModel r) throws IOException {
+
+        if (r instanceof RetrievalModelUnrankedBoolean) {
+            return 1.0;
+        }
+
+        //  A Boolean AND score is the minimum of the arguments' scores,
+        //  so any argument's bound is a bound.  The cheapest argument's
+        //  bound is also the cheapest to compute.
+
+        else if (r instanceof RetrievalModelRankedBoolean) {
+            Qry cheapest = this.args.get (0);
+
+            for (Qry q_i : this.args) {
+                if (q_i.getCost () < cheapest.getCost ()) {
+                    cheapest = q_i;
+                }
+            }
+
+            return ((QrySop) cheapest).getMaxScore (r);
+        }
+
+        return super.getMaxScore (r);
+    }
+
+    /**
+     *  Set the score that a document must reach to be useful to the
+     *  caller.  A Boolean AND score is the minimum of the arguments'
+     *  scores, so each argument must reach the threshold, too.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param threshold The score threshold.
+     */
+    public void setScoreThreshold (RetrievalModel r, double threshold) {
+
+        super.setScoreThreshold (r, threshold);
+
+        if ((r instanceof RetrievalModelUnrankedBoolean) ||
+            (r instanceof RetrievalModelRankedBoolean)) {
+            for (Qry q_i : this.args) {
+                ((QrySop) q_i).setScoreThreshold (r, threshold);
+            }
+        }
+    }
+
     /**
      *  Get a score for the document that docIteratorHasMatch matched.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -36,12 +262,40 @@ public class QrySopAnd extends QrySop {
             return this.getScoreRankedBoolean (r);
         }
 
+        else if (r instanceof RetrievalModelIndri) {
+            return this.getScoreIndri (r);
+        }
+
         else {
             throw new IllegalArgumentException
                     (r.getClass().getName() + " doesn't support the OR operator.");
         }
     }
 
+    /**
+     *  Get a score for a document that this query operator doesn't
+     *  match.  An Indri AND combines its arguments' default scores.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid The internal docid of the document that is being scored.
+     *  @return The default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getDefaultScore (RetrievalModel r, int docid)
+        throws IOException {
+
+        if (r instanceof RetrievalModelIndri) {
+            double score = 0.0;
+
+            for (Qry q_i : this.args) {
+                score += ((QrySop) q_i).getDefaultScore (r, docid);
+            }
+
+            return score / this.args.size ();
+        }
+
+        return super.getDefaultScore (r, docid);
+    }
+
     /**
      *  getScore for the UnrankedBoolean retrieval model.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -56,6 +310,31 @@ public class QrySopAnd extends QrySop {
         }
     }
 
+    /**
+     *  getScore for the Indri retrieval model.  Scores are log
+     *  probabilities, so the geometric mean of the arguments'
+     *  probabilities is the mean of their scores.  Arguments that
+     *  aren't on the document contribute their default scores.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getScoreIndri (RetrievalModel r) throws IOException {
+
+        if (! this.docIteratorHasMatchCache ()) {
+            return 0.0;
+        }
+
+        int docid = this.docIteratorGetMatch ();
+        double score = 0.0;
+
+        for (Qry q_i : this.args) {
+            score += getScoreOrDefault (r, (QrySop) q_i, docid);
+        }
+
+        return score / this.args.size ();
+    }
+
     private double getScoreRankedBoolean (RetrievalModel r) throws IOException {
         if (!this.docIteratorHasMatchCache()) {
             return 0.0;
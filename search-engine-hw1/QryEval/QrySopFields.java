@@ -0,0 +1,417 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.PostingsEnum;
+
+/**
+ *  The FIELDS operator, which scores one term in several fields of a
+ *  document, e.g., #FIELDS (url:0.1 title:0.3 body:0.6 apple).  Its
+ *  arguments are the term's QryIopTerm in each field, in the order of
+ *  the field weights.  A document matches if the term occurs in any
+ *  of the fields; the arguments are traversed together in one
+ *  docid-ordered pass, and their tfs are combined in this operator,
+ *  so there is no SCORE operator or combining operator per field.
+ *  <p>
+ *  BM25 combines the fields BM25F-style:  each field's tf is length
+ *  normalized with its own average length and multiplied by its
+ *  weight, and the weighted sum is saturated once.  The term's df is
+ *  the largest of its per-field dfs (the df of the union of the
+ *  fields is at least that large).  Indri mixes the smoothed field
+ *  probabilities, with weights normalized to sum to 1, like #WSUM.
+ *  The ranked Boolean score is the largest tf, like #OR.
+ *  </p>
+ */
+public class QrySopFields extends QrySop {
+
+  /**
+   *  The field of each argument, and its weight.
+   */
+  private List<String> fields = new ArrayList<String> ();
+  private List<Double> weights = new ArrayList<Double> ();
+
+  /**
+   *  Document-independent values, one per argument, that initialize
+   *  precomputes:  the field lengths (see Idx.getFieldLengths) and the
+   *  constant and per-length parts of the field's normalization.
+   *  For BM25 the normalization is ((1 - b) + b * length / avgdl) /
+   *  weight; for Indri it is the smoothed probability of the field
+   *  (see QrySopScore).
+   */
+  private int[][] fieldLengths;
+  private double[] fieldWeights;
+  private double[] fieldNorms;
+  private double[] fieldNormsPerLength;
+  private double[] fieldMuPs;
+  private double[] fieldLambdaPs;
+
+  /**
+   *  Document-independent values for all fields:  BM25's weight (idf
+   *  times the query term weight) and k1, and Indri's mu and
+   *  1 - lambda.
+   */
+  private double bm25Weight;
+  private double bm25K1;
+  private double indriMu;
+  private double indriOneMinusLambda;
+
+  /**
+   *  Scratch space for the tfs of the document that is being scored.
+   */
+  private int[] tfs;
+
+  /**
+   *  Add a field and its weight.  The query parser calls this for
+   *  each "field:weight" argument, before it adds the term in that
+   *  field.
+   *  @param field The field name.
+   *  @param weight The field weight.
+   *  @throws IllegalArgumentException The weight is negative.
+   */
+  public void addField (String field, double weight)
+    throws IllegalArgumentException {
+
+    if (weight < 0.0) {
+      throw new IllegalArgumentException
+        ("Field weights must be >= 0:  " + field + ":" + weight);
+    }
+
+    this.fields.add (field);
+    this.weights.add (weight);
+  }
+
+  /**
+   *  Append an argument.  FIELDS operators have one TERM argument per
+   *  field, which they score themselves, so no SCORE operator is
+   *  inserted.
+   *  @param q The query argument (query operator) to append.
+   *  @throws IllegalArgumentException q is not a term.
+   */
+  @Override public void appendArg (Qry q) throws IllegalArgumentException {
+
+    if (! (q instanceof QryIopTerm)) {
+      throw new IllegalArgumentException
+        ("The arguments to a FIELDS operator must be terms.");
+    }
+
+    this.args.add (q);
+  }
+
+  /**
+   *  Move to the first match at or after target, and return it.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+    return this.advanceMin (r, target);
+  }
+
+  /**
+   *  Indicates whether the query has a match:  the term occurs in at
+   *  least one field.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    return this.docIteratorHasMatchMin (r);
+  }
+
+  /**
+   *  Get a score for a document that this query operator doesn't
+   *  match:  the Indri score with tf = 0 in every field.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal docid of the document that is being scored.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (RetrievalModel r, int docid)
+    throws IOException {
+
+    if (r instanceof RetrievalModelIndri) {
+      Arrays.fill (this.tfs, 0);
+      return this.getScoreIndri (docid);
+    }
+
+    return super.getDefaultScore (r, docid);
+  }
+
+  /**
+   *  Get the field names, in argument order.
+   *  @return The field names.
+   */
+  public List<String> getFields () {
+    return this.fields;
+  }
+
+  /**
+   *  Get an upper bound on the score of any document that this query
+   *  operator matches.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return An upper bound on document scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return 1.0;
+    }
+
+    else if (r instanceof RetrievalModelRankedBoolean) {
+      double maxScore = 0.0;
+
+      for (Qry q_i : this.args) {
+        maxScore = Math.max (maxScore, ((QryIop) q_i).getMaxTf ());
+      }
+
+      return maxScore;
+    }
+
+    //  tf / (k1 + tf) is below 1 for any combined tf.
+
+    else if (r instanceof RetrievalModelBM25) {
+      return this.bm25Weight;
+    }
+
+    return super.getMaxScore (r);
+  }
+
+  /**
+   *  Get a score for the document that docIteratorHasMatch matched.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getScore (RetrievalModel r) throws IOException {
+
+    if (! this.docIteratorHasMatchCache ()) {
+      return 0.0;
+    }
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return 1.0;
+    }
+
+    int docid = this.docIteratorGetMatch ();
+
+    this.getMatchTfs (r, docid);
+
+    if (r instanceof RetrievalModelRankedBoolean) {
+      int maxTf = 0;
+
+      for (int tf : this.tfs) {
+        maxTf = Math.max (maxTf, tf);
+      }
+
+      return maxTf;
+    }
+
+    else if (r instanceof RetrievalModelBM25) {
+      return this.getScoreBM25 (docid);
+    }
+
+    else if (r instanceof RetrievalModelIndri) {
+      return this.getScoreIndri (docid);
+    }
+
+    else {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support the FIELDS operator.");
+    }
+  }
+
+  /**
+   *  BM25F score of a document, from the tfs in this.tfs.
+   *  @param docid The internal docid of the document that is being scored.
+   *  @return The document score.
+   */
+  private double getScoreBM25 (int docid) {
+
+    double tf = 0.0;
+
+    for (int i = 0; i < this.tfs.length; i++) {
+      if (this.tfs[i] > 0) {
+        tf += this.tfs[i] /
+          (this.fieldNorms[i] + this.fieldNormsPerLength[i] * this.fieldLengths[i][docid]);
+      }
+    }
+
+    return this.bm25Weight * tf / (this.bm25K1 + tf);
+  }
+
+  /**
+   *  Indri score of a document, from the tfs in this.tfs:  the log of
+   *  the weighted mixture of the fields' smoothed probabilities.
+   *  @param docid The internal docid of the document that is being scored.
+   *  @return The document score.
+   */
+  private double getScoreIndri (int docid) {
+
+    double p = 0.0;
+
+    for (int i = 0; i < this.tfs.length; i++) {
+      p += this.fieldWeights[i] *
+        (this.indriOneMinusLambda * (this.tfs[i] + this.fieldMuPs[i]) /
+         (this.fieldLengths[i][docid] + this.indriMu) + this.fieldLambdaPs[i]);
+    }
+
+    return Math.log (p);
+  }
+
+  /**
+   *  Get the tf of each argument in a document into this.tfs; an
+   *  argument that isn't on the document has tf 0.
+   *  @param r The retrieval model that determines what is a match
+   *  @param docid The internal docid of the document that is being scored.
+   */
+  private void getMatchTfs (RetrievalModel r, int docid) {
+
+    for (int i = 0; i < this.tfs.length; i++) {
+      QryIop q_i = (QryIop) this.args.get (i);
+
+      this.tfs[i] = (q_i.docIteratorHasMatch (r) &&
+                     (q_i.docIteratorGetMatch () == docid)) ?
+        q_i.docIteratorGetMatchTf () : 0;
+    }
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments), including any
+   *  internal iterators, and precompute the document-independent
+   *  parts of scores.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    int n = this.args.size ();
+
+    for (Qry q_i : this.args) {
+      ((QryIop) q_i).setRequiredPostings
+        ((r instanceof RetrievalModelUnrankedBoolean) ?
+         PostingsEnum.NONE : PostingsEnum.FREQS);
+    }
+
+    super.initialize (r);
+
+    this.tfs = new int[n];
+    this.fieldLengths = new int[n][];
+    this.fieldWeights = new double[n];
+    this.fieldNorms = new double[n];
+    this.fieldNormsPerLength = new double[n];
+
+    if (r instanceof RetrievalModelBM25) {
+      this.initializeBM25 ((RetrievalModelBM25) r);
+    } else if (r instanceof RetrievalModelIndri) {
+      this.initializeIndri ((RetrievalModelIndri) r);
+    }
+  }
+
+  /**
+   *  Precompute the document-independent parts of BM25F scores.  A
+   *  field's normalization is divided by its weight, so that a field
+   *  with weight 0 contributes nothing.
+   *  @param r The BM25 retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void initializeBM25 (RetrievalModelBM25 r) throws IOException {
+
+    double b = r.getB ();
+    double k3 = r.getK3 ();
+    int qtf = 1;
+    int df = 0;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      String field = this.fields.get (i);
+      double weight = this.weights.get (i);
+      double avgLength = Idx.getAvgFieldLength (field);
+
+      df = Math.max (df, ((QryIop) this.args.get (i)).getDf ());
+
+      this.fieldLengths[i] = Idx.getFieldLengths (field);
+
+      if (weight > 0.0) {
+        this.fieldNorms[i] = (1.0 - b) / weight;
+        this.fieldNormsPerLength[i] = (avgLength > 0.0) ? b / avgLength / weight : 0.0;
+      } else {
+        this.fieldNorms[i] = Double.POSITIVE_INFINITY;
+      }
+    }
+
+    long N = Idx.getNumDocs ();
+    double idf = Math.max (0.0, Math.log ((N - df + 0.5) / (df + 0.5)));
+    double qtfWeight = (k3 + 1.0) * qtf / (k3 + qtf);
+
+    this.bm25Weight = idf * qtfWeight;
+    this.bm25K1 = r.getK1 ();
+  }
+
+  /**
+   *  Precompute the document-independent parts of Indri scores.  The
+   *  weights are normalized to sum to 1.  As in QrySopScore, a term
+   *  that doesn't occur in a field gets ctf = 0.5 there.
+   *  @param r The Indri retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void initializeIndri (RetrievalModelIndri r) throws IOException {
+
+    int n = this.args.size ();
+    double sumOfWeights = 0.0;
+    double lambda = r.getLambda ();
+
+    for (double weight : this.weights) {
+      sumOfWeights += weight;
+    }
+
+    this.fieldMuPs = new double[n];
+    this.fieldLambdaPs = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      String field = this.fields.get (i);
+      double ctf = Math.max (((QryIop) this.args.get (i)).getCtf (), 0.5);
+      long collectionLength = Math.max (Idx.getSumOfFieldLengths (field), 1);
+      double p = ctf / collectionLength;
+
+      this.fieldLengths[i] = Idx.getFieldLengths (field);
+      this.fieldWeights[i] = (sumOfWeights > 0.0) ?
+        this.weights.get (i) / sumOfWeights : 1.0 / n;
+      this.fieldMuPs[i] = r.getMu () * p;
+      this.fieldLambdaPs[i] = lambda * p;
+    }
+
+    this.indriMu = r.getMu ();
+    this.indriOneMinusLambda = 1.0 - lambda;
+  }
+
+  /**
+   *  Move to the next match, and return it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int nextDoc (RetrievalModel r) {
+    return (this.docID == NO_MORE_DOCS) ?
+      NO_MORE_DOCS : this.advance (r, this.docID + 1);
+  }
+
+  /**
+   *  Get a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  @Override public String toString () {
+
+    StringBuilder result = new StringBuilder ();
+
+    for (int i = 0; i < this.fields.size (); i++) {
+      result.append (this.fields.get (i)).append (':').append (this.weights.get (i)).append (' ');
+    }
+
+    if (this.args.size () > 0) {
+      result.append (((QryIopTerm) this.args.get (0)).getTerm ()).append (' ');
+    }
+
+    return (this.getDisplayName () + "( " + result + ")");
+  }
+}
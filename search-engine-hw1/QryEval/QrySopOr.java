@@ -10,14 +10,106 @@ import java.io.*;
 public class QrySopOr extends QrySop {
 
   /**
-   *  Indicates whether the query has a match.
+   *  Move to the first match at or after target, and return it.  With
+   *  dynamic pruning, the match is the pruning driver's pivot.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+
+    if (isPruned (r)) {
+      return this.advancePruned (r, target, false);
+    }
+
+    return this.advanceMin (r, target);
+  }
+
+  /**
+   *  Indicates whether the query has a match.  Ranked retrieval
+   *  models may use WAND, MaxScore, or Block-Max WAND to skip documents that can't
+   *  reach the score threshold.
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
+
+    //  OR scores a document with the maximum of its arguments' scores.
+
+    if (isPruned (r)) {
+      return this.docIteratorHasMatchPruned (r, false);
+    }
+
     return this.docIteratorHasMatchMin (r);
   }
 
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxScore
+   *  (r, docid), which is where the first argument's block ends.
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+
+    int last = Integer.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      last = Math.min (last, ((QrySop) q_i).getBlockLastDocid (docid));
+    }
+
+    return last;
+  }
+
+  /**
+   *  Get an upper bound on the scores of the documents from docid to
+   *  getBlockLastDocid (docid).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return An upper bound on document scores in the block.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getBlockMaxScore (RetrievalModel r, int docid)
+    throws IOException {
+
+    if (r instanceof RetrievalModelRankedBoolean) {
+      double maxScore = 0.0;
+
+      for (Qry q_i : this.args) {
+        maxScore = Math.max (maxScore, ((QrySop) q_i).getBlockMaxScore (r, docid));
+      }
+
+      return maxScore;
+    }
+
+    return super.getBlockMaxScore (r, docid);
+  }
+
+  /**
+   *  Get an upper bound on the score of any document that this query
+   *  operator matches.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return An upper bound on document scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return 1.0;
+    }
+
+    else if (r instanceof RetrievalModelRankedBoolean) {
+      double maxScore = 0.0;
+
+      for (Qry q_i : this.args) {
+        maxScore = Math.max (maxScore, ((QrySop) q_i).getMaxScore (r));
+      }
+
+      return maxScore;
+    }
+
+    return super.getMaxScore (r);
+  }
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -36,11 +128,64 @@ public class QrySopOr extends QrySop {
       return this.getScoreRankedBoolean (r);
     }
 
+    else if (r instanceof RetrievalModelIndri) {
+      return this.getScoreIndri (r);
+    }
+
     else {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the OR operator.");
     }
   }
+
+  /**
+   *  Get a score for a document that this query operator doesn't
+   *  match.  An Indri OR combines its arguments' default scores.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal docid of the document that is being scored.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (RetrievalModel r, int docid)
+    throws IOException {
+
+    if (r instanceof RetrievalModelIndri) {
+      double notProbability = 1.0;
+
+      for (Qry q_i : this.args) {
+        notProbability *= - Math.expm1 (((QrySop) q_i).getDefaultScore (r, docid));
+      }
+
+      return Math.log1p (- notProbability);
+    }
+
+    return super.getDefaultScore (r, docid);
+  }
+
+  /**
+   *  getScore for the Indri retrieval model:  the log of
+   *  1 - (1 - p_1) ... (1 - p_n), where p_i is the probability of
+   *  argument i.  Arguments that aren't on the document contribute
+   *  their default scores.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private double getScoreIndri (RetrievalModel r) throws IOException {
+
+    if (! this.docIteratorHasMatchCache ()) {
+      return 0.0;
+    }
+
+    int docid = this.docIteratorGetMatch ();
+    double notProbability = 1.0;
+
+    for (Qry q_i : this.args) {
+      notProbability *= - Math.expm1 (getScoreOrDefault (r, (QrySop) q_i, docid));
+    }
+
+    return Math.log1p (- notProbability);
+  }
   
   /**
    *  getScore for the UnrankedBoolean retrieval model.
@@ -91,4 +236,24 @@ public class QrySopOr extends QrySop {
     }
   }
 
+  /**
+   *  Indicates whether OR uses a dynamic pruning driver.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if documents are pruned with a score threshold.
+   */
+  private static boolean isPruned (RetrievalModel r) {
+    return ((r instanceof RetrievalModelRankedBoolean) &&
+            (! r.getDynamicPruning ().equals (RetrievalModel.PRUNING_NONE)));
+  }
+
+  /**
+   *  Move to the next match, and return it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int nextDoc (RetrievalModel r) {
+    return (this.docID == NO_MORE_DOCS) ?
+      NO_MORE_DOCS : this.advance (r, this.docID + 1);
+  }
+
 }
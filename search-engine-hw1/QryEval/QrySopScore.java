@@ -5,6 +5,8 @@
 import java.io.*;
 import java.lang.IllegalArgumentException;
 
+import org.apache.lucene.index.PostingsEnum;
+
 /**
  *  The SCORE operator for all retrieval models.
  */
@@ -14,7 +16,46 @@ public class QrySopScore extends QrySop {
    *  Document-independent values that should be determined just once.
    *  Some retrieval models have these, some don't.
    */
-  
+
+  /**
+   *  BM25:  the field's lengths (see Idx.getFieldLengths), the
+   *  document-independent weight (idf times the query term weight),
+   *  and the length normalization k1 * ((1 - b) + b * length / avgdl)
+   *  split into a constant and a per-length factor.  With these, a
+   *  document's score is arithmetic on primitives.
+   */
+  private int[] bm25Lengths;
+  private double bm25Weight;
+  private double bm25Norm;
+  private double bm25NormPerLength;
+
+  /**
+   *  Indri:  the field's lengths, and the parts of the smoothed
+   *  probability (1 - lambda) * (tf + mu * p) / (length + mu) +
+   *  lambda * p that don't depend on the document, where p is the
+   *  term's background probability ctf / |C|.
+   */
+  private int[] indriLengths;
+  private double indriMu;
+  private double indriMuP;
+  private double indriOneMinusLambda;
+  private double indriLambdaP;
+
+  /**
+   *  Move to the first match at or after target, and return it.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+
+    if (this.docID >= target) {
+      return this.docID;
+    }
+
+    return this.setDocID (this.args.get (0).advance (r, target));
+  }
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -24,6 +65,82 @@ public class QrySopScore extends QrySop {
     return this.docIteratorHasMatchFirst (r);
   }
 
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxScore
+   *  (r, docid).
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+    return ((QryIop) this.args.get (0)).getBlockLastDocid (docid);
+  }
+
+  /**
+   *  Get an upper bound on the scores of the documents from docid to
+   *  getBlockLastDocid (docid).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return An upper bound on document scores in the block.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getBlockMaxScore (RetrievalModel r, int docid)
+    throws IOException {
+
+    if (r instanceof RetrievalModelRankedBoolean) {
+      return ((QryIop) this.args.get (0)).getBlockMaxTf (docid);
+    }
+
+    else if (r instanceof RetrievalModelBM25) {
+      QryIop q = (QryIop) this.args.get (0);
+      return this.getMaxScoreBM25 (q.getBlockMaxTf (docid), q.getBlockMinLength (docid));
+    }
+
+    return super.getBlockMaxScore (r, docid);
+  }
+
+  /**
+   *  Get an upper bound on the score of any document that this query
+   *  operator matches.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return An upper bound on document scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return 1.0;
+    }
+
+    else if (r instanceof RetrievalModelRankedBoolean) {
+      return ((QryIop) this.args.get (0)).getMaxTf ();
+    }
+
+    else if (r instanceof RetrievalModelBM25) {
+      return this.getMaxScoreBM25 (((QryIop) this.args.get (0)).getMaxTf (), 0);
+    }
+
+    return super.getMaxScore (r);
+  }
+
+  /**
+   *  Get an upper bound on the BM25 score of documents whose tf is at
+   *  most maxTf and whose length is at least minLength.  The score
+   *  increases with tf and decreases with the document length, so the
+   *  bound uses maxTf and minLength.
+   *  @param maxTf An upper bound on tf.
+   *  @param minLength A lower bound on the field length.
+   *  @return An upper bound on document scores.
+   */
+  private double getMaxScoreBM25 (int maxTf, int minLength) {
+
+    if (maxTf <= 0) {
+      return 0.0;
+    }
+
+    return this.bm25Weight * maxTf /
+      (maxTf + this.bm25Norm + this.bm25NormPerLength * minLength);
+  }
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -41,6 +158,14 @@ public class QrySopScore extends QrySop {
       return this.getScoreRankedBoolean (r);
     }
 
+    else if (r instanceof RetrievalModelBM25) {
+      return this.getScoreBM25 (r);
+    }
+
+    else if (r instanceof RetrievalModelIndri) {
+      return this.getScoreIndri (r);
+    }
+
     else {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the SCORE operator.");
@@ -70,13 +195,78 @@ public class QrySopScore extends QrySop {
     return 1.0;
   }
 
+  /**
+   *  getScore for the BM25 retrieval model:
+   *  idf * tf / (tf + k1 * ((1 - b) + b * length / avgdl)) * qtfWeight,
+   *  using the values that initialize precomputed.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getScoreBM25 (RetrievalModel r) throws IOException {
+
+    if (! this.docIteratorHasMatchCache ()) {
+      return 0.0;
+    }
+
+    int tf = ((QryIop) this.args.get (0)).docIteratorGetMatchTf ();
+    int length = this.bm25Lengths[this.docIteratorGetMatch ()];
+
+    return this.bm25Weight * tf /
+      (tf + this.bm25Norm + this.bm25NormPerLength * length);
+  }
+
+  /**
+   *  Get a score for a document that the argument doesn't match:  the
+   *  Indri score for tf = 0.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal docid of the document that is being scored.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (RetrievalModel r, int docid)
+    throws IOException {
+
+    if (r instanceof RetrievalModelIndri) {
+      return this.getScoreIndri (0, this.indriLengths[docid]);
+    }
+
+    return super.getDefaultScore (r, docid);
+  }
+
+  /**
+   *  getScore for the Indri retrieval model.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getScoreIndri (RetrievalModel r) throws IOException {
+
+    if (! this.docIteratorHasMatchCache ()) {
+      return 0.0;
+    }
+
+    return this.getScoreIndri (((QryIop) this.args.get (0)).docIteratorGetMatchTf (),
+                               this.indriLengths[this.docIteratorGetMatch ()]);
+  }
+
+  /**
+   *  Get the Indri score (a log probability) for a tf and a field
+   *  length, using the values that initialize precomputed.
+   *  @param tf The term frequency.
+   *  @param length The field length.
+   *  @return The score.
+   */
+  private double getScoreIndri (int tf, int length) {
+    return Math.log (this.indriOneMinusLambda * (tf + this.indriMuP) /
+                     (length + this.indriMu) + this.indriLambdaP);
+  }
+
   public double getScoreRankedBoolean(RetrievalModel r) throws IOException {
     if (!this.docIteratorHasMatchCache()) {
       return 0.0;
     } else {
-      InvList.DocPosting postings = ((QryIop)this.args.get(0)).docIteratorGetMatchPosting();
-      double score = postings.tf;
-      return score;
+      return ((QryIop) this.args.get(0)).docIteratorGetMatchTf();
     }
   }
 
@@ -90,8 +280,26 @@ public class QrySopScore extends QrySop {
    */
   public void initialize (RetrievalModel r) throws IOException {
 
-    Qry q = this.args.get (0);
+    //  SCORE needs only a tf (or, for unranked Boolean, just a docid),
+    //  so the argument doesn't need to decode locations.
+
+    QryIop q = (QryIop) this.args.get (0);
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      q.setRequiredPostings (PostingsEnum.NONE);
+    } else {
+      q.setRequiredPostings (PostingsEnum.FREQS);
+    }
+
+    q.limitAdvances (this.maxAdvances);
     q.initialize (r);
+    this.docID = -1;
+
+    if (r instanceof RetrievalModelBM25) {
+      this.initializeBM25 ((RetrievalModelBM25) r, q);
+    } else if (r instanceof RetrievalModelIndri) {
+      this.initializeIndri ((RetrievalModelIndri) r, q);
+    }
 
     /*
      *  STUDENTS:: In HW2 during query initialization you may find it
@@ -102,4 +310,67 @@ public class QrySopScore extends QrySop {
      */
   }
 
+  /**
+   *  Precompute the document-independent parts of BM25 scores.
+   *  Queries are bags of words, so each argument has a query term
+   *  frequency (qtf) of 1.
+   *  @param r The BM25 retrieval model.
+   *  @param q The initialized argument.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void initializeBM25 (RetrievalModelBM25 r, QryIop q)
+    throws IOException {
+
+    String field = q.getField ();
+    long N = Idx.getNumDocs ();
+    int df = q.getDf ();
+    double avgLength = Idx.getAvgFieldLength (field);
+    double k1 = r.getK1 ();
+    double b = r.getB ();
+    double k3 = r.getK3 ();
+    int qtf = 1;
+
+    double idf = Math.max (0.0, Math.log ((N - df + 0.5) / (df + 0.5)));
+    double qtfWeight = (k3 + 1.0) * qtf / (k3 + qtf);
+
+    this.bm25Lengths = Idx.getFieldLengths (field);
+    this.bm25Weight = idf * qtfWeight;
+    this.bm25Norm = k1 * (1.0 - b);
+    this.bm25NormPerLength = (avgLength > 0.0) ? k1 * b / avgLength : 0.0;
+  }
+
+  /**
+   *  Precompute the document-independent parts of Indri scores, once
+   *  per query, so that scores and default scores don't access the
+   *  index.  An argument that doesn't occur (e.g., a #NEAR that never
+   *  matches) gets ctf = 0.5, so that its default score is finite.
+   *  @param r The Indri retrieval model.
+   *  @param q The initialized argument.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void initializeIndri (RetrievalModelIndri r, QryIop q)
+    throws IOException {
+
+    String field = q.getField ();
+    double ctf = Math.max (q.getCtf (), 0.5);
+    long collectionLength = Math.max (Idx.getSumOfFieldLengths (field), 1);
+    double p = ctf / collectionLength;
+    double lambda = r.getLambda ();
+
+    this.indriLengths = Idx.getFieldLengths (field);
+    this.indriMu = r.getMu ();
+    this.indriMuP = r.getMu () * p;
+    this.indriOneMinusLambda = 1.0 - lambda;
+    this.indriLambdaP = lambda * p;
+  }
+
+  /**
+   *  Move to the next match, and return it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int nextDoc (RetrievalModel r) {
+    return this.setDocID (this.args.get (0).nextDoc (r));
+  }
+
 }
@@ -0,0 +1,175 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  The SUM operator for the BM25 retrieval model.  A document matches
+ *  if any argument matches it, and its score is the sum of the
+ *  matching arguments' scores.
+ */
+public class QrySopSum extends QrySop {
+
+  /**
+   *  Move to the first match at or after target, and return it.  With
+   *  dynamic pruning, the match is the pruning driver's pivot.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int advance (RetrievalModel r, int target) {
+
+    if (isPruned (r)) {
+      return this.advancePruned (r, target, true);
+    }
+
+    return this.advanceMin (r, target);
+  }
+
+  /**
+   *  Indicates whether the query has a match.  BM25 may use WAND,
+   *  MaxScore, or Block-Max WAND to skip documents that can't reach
+   *  the score threshold.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+
+    //  SUM scores a document with the sum of its arguments' scores.
+
+    if (isPruned (r)) {
+      return this.docIteratorHasMatchPruned (r, true);
+    }
+
+    return this.docIteratorHasMatchMin (r);
+  }
+
+  /**
+   *  Get the last docid of the block that bounds getBlockMaxScore
+   *  (r, docid), which is where the first argument's block ends.
+   *  @param docid An internal document id.
+   *  @return The last internal docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+
+    int last = Integer.MAX_VALUE;
+
+    for (Qry q_i : this.args) {
+      last = Math.min (last, ((QrySop) q_i).getBlockLastDocid (docid));
+    }
+
+    return last;
+  }
+
+  /**
+   *  Get an upper bound on the scores of the documents from docid to
+   *  getBlockLastDocid (docid).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return An upper bound on document scores in the block.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getBlockMaxScore (RetrievalModel r, int docid)
+    throws IOException {
+
+    if (r instanceof RetrievalModelBM25) {
+      double maxScore = 0.0;
+
+      for (Qry q_i : this.args) {
+        maxScore += ((QrySop) q_i).getBlockMaxScore (r, docid);
+      }
+
+      return maxScore;
+    }
+
+    return super.getBlockMaxScore (r, docid);
+  }
+
+  /**
+   *  Get an upper bound on the score of any document that this query
+   *  operator matches.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return An upper bound on document scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelBM25) {
+      double maxScore = 0.0;
+
+      for (Qry q_i : this.args) {
+        maxScore += ((QrySop) q_i).getMaxScore (r);
+      }
+
+      return maxScore;
+    }
+
+    return super.getMaxScore (r);
+  }
+
+  /**
+   *  Get a score for the document that docIteratorHasMatch matched.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getScore (RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelBM25) {
+      return this.getScoreBM25 (r);
+    }
+
+    else {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support the SUM operator.");
+    }
+  }
+
+  /**
+   *  getScore for the BM25 retrieval model.  Only the arguments that
+   *  are on the matching document contribute.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private double getScoreBM25 (RetrievalModel r) throws IOException {
+
+    if (! this.docIteratorHasMatchCache ()) {
+      return 0.0;
+    }
+
+    int docid = this.docIteratorGetMatch ();
+    double score = 0.0;
+
+    for (Qry q_i : this.args) {
+      if (q_i.docIteratorHasMatchCache () &&
+          (q_i.docIteratorGetMatch () == docid)) {
+        score += ((QrySop) q_i).getScore (r);
+      }
+    }
+
+    return score;
+  }
+
+  /**
+   *  Indicates whether SUM uses a dynamic pruning driver.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if documents are pruned with a score threshold.
+   */
+  private static boolean isPruned (RetrievalModel r) {
+    return ((r instanceof RetrievalModelBM25) &&
+            (! r.getDynamicPruning ().equals (RetrievalModel.PRUNING_NONE)));
+  }
+
+  /**
+   *  Move to the next match, and return it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The internal docid of the match, or NO_MORE_DOCS.
+   */
+  public int nextDoc (RetrievalModel r) {
+    return (this.docID == NO_MORE_DOCS) ?
+      NO_MORE_DOCS : this.advance (r, this.docID + 1);
+  }
+
+}
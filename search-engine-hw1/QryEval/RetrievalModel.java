@@ -10,10 +10,130 @@
  */
 public abstract class RetrievalModel {
 
+  /**
+   *  Dynamic pruning strategies for ranked retrieval.  Pruning skips
+   *  documents that can't be in the top k; it doesn't change results.
+   *  It is off unless the dynamicPruning parameter selects it.
+   */
+  public static final String PRUNING_NONE = "none";
+  public static final String PRUNING_WAND = "wand";
+  public static final String PRUNING_MAXSCORE = "maxscore";
+  public static final String PRUNING_BMW = "bmw";
+
+  private String dynamicPruning = PRUNING_NONE;
+
+  /**
+   *  Query evaluation strategies.  DAAT (document-at-a-time) evaluates
+   *  any query with the query operators.  TAAT (term-at-a-time; see
+   *  TaatEvaluator) and SAAT (score-at-a-time; see SaatEvaluator)
+   *  evaluate flat queries of terms, and BITSET (see BitsetEvaluator)
+   *  evaluates unranked Boolean queries; they fall back to DAAT for
+   *  other queries.  AUTO lets QryPlanner choose for each query.
+   */
+  public static final String EVALUATOR_AUTO = "auto";
+  public static final String EVALUATOR_BITSET = "bitset";
+  public static final String EVALUATOR_DAAT = "daat";
+  public static final String EVALUATOR_SAAT = "saat";
+  public static final String EVALUATOR_TAAT = "taat";
+
+  private String evaluator = EVALUATOR_DAAT;
+  private long postingBudget = 0;
+
   /**
    *  The name of the default query operator for the retrieval model.
    *  @return The name of the default query operator.
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get the dynamic pruning strategy that query operators should use.
+   *  @return The pruning strategy, e.g., PRUNING_NONE.
+   */
+  public String getDynamicPruning () {
+    return this.dynamicPruning;
+  }
+
+  /**
+   *  Get the query evaluation strategy.
+   *  @return The evaluation strategy, e.g., EVALUATOR_DAAT.
+   */
+  public String getEvaluator () {
+    return this.evaluator;
+  }
+
+  /**
+   *  Get the maximum number of postings that score-at-a-time
+   *  evaluation reads for a query.
+   *  @return The posting budget, or 0 if there is no limit.
+   */
+  public long getPostingBudget () {
+    return this.postingBudget;
+  }
+
+  /**
+   *  Set the dynamic pruning strategy, e.g., from the dynamicPruning
+   *  parameter.
+   *  @param pruning The pruning strategy:  "wand", "maxscore", "bmw"
+   *  (Block-Max WAND), or "none".
+   *  @throws IllegalArgumentException Unknown pruning strategy.
+   */
+  public void setDynamicPruning (String pruning)
+    throws IllegalArgumentException {
+
+    pruning = pruning.toLowerCase ();
+
+    if (! (pruning.equals (PRUNING_NONE) ||
+           pruning.equals (PRUNING_WAND) ||
+           pruning.equals (PRUNING_MAXSCORE) ||
+           pruning.equals (PRUNING_BMW))) {
+      throw new IllegalArgumentException
+        ("Unknown dynamic pruning strategy " + pruning);
+    }
+
+    this.dynamicPruning = pruning;
+  }
+
+  /**
+   *  Set the query evaluation strategy, e.g., from the evaluator
+   *  parameter.
+   *  @param evaluator The evaluation strategy:  "daat", "taat",
+   *  "saat", "bitset", or "auto".
+   *  @throws IllegalArgumentException Unknown evaluation strategy.
+   */
+  public void setEvaluator (String evaluator)
+    throws IllegalArgumentException {
+
+    evaluator = evaluator.toLowerCase ();
+
+    if (! (evaluator.equals (EVALUATOR_AUTO) ||
+           evaluator.equals (EVALUATOR_BITSET) ||
+           evaluator.equals (EVALUATOR_DAAT) ||
+           evaluator.equals (EVALUATOR_SAAT) ||
+           evaluator.equals (EVALUATOR_TAAT))) {
+      throw new IllegalArgumentException
+        ("Unknown query evaluation strategy " + evaluator);
+    }
+
+    this.evaluator = evaluator;
+  }
+
+  /**
+   *  Set the maximum number of postings that score-at-a-time
+   *  evaluation reads for a query, e.g., from the postingBudget
+   *  parameter.  A budget bounds the cost of each query; results are
+   *  approximate if a query's terms have more postings.
+   *  @param postingBudget The posting budget, or 0 for no limit.
+   *  @throws IllegalArgumentException The budget is negative.
+   */
+  public void setPostingBudget (long postingBudget)
+    throws IllegalArgumentException {
+
+    if (postingBudget < 0) {
+      throw new IllegalArgumentException
+        ("The posting budget must be >= 0");
+    }
+
+    this.postingBudget = postingBudget;
+  }
+
 }
@@ -0,0 +1,69 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  An object that stores parameters for the BM25 retrieval model and
+ *  indicates to the query operators how the query should be
+ *  evaluated.
+ */
+public class RetrievalModelBM25 extends RetrievalModel {
+
+  /**
+   *  k1 controls how quickly the term frequency weight saturates, b
+   *  controls how much the document length normalizes it, and k3
+   *  controls how quickly the query term frequency weight saturates.
+   */
+  private double k1;
+  private double b;
+  private double k3;
+
+  /**
+   *  Create a BM25 retrieval model.
+   *  @param k1 The term frequency saturation parameter (k1 &gt;= 0).
+   *  @param b The length normalization parameter (0 &lt;= b &lt;= 1).
+   *  @param k3 The query term frequency saturation parameter (k3 &gt;= 0).
+   *  @throws IllegalArgumentException A parameter is out of range.
+   */
+  public RetrievalModelBM25 (double k1, double b, double k3)
+    throws IllegalArgumentException {
+
+    if ((k1 < 0.0) || (b < 0.0) || (b > 1.0) || (k3 < 0.0)) {
+      throw new IllegalArgumentException
+        ("BM25 requires k1 >= 0, 0 <= b <= 1, and k3 >= 0");
+    }
+
+    this.k1 = k1;
+    this.b = b;
+    this.k3 = k3;
+  }
+
+  public String defaultQrySopName () {
+    return new String ("#sum");
+  }
+
+  /**
+   *  Get the length normalization parameter.
+   *  @return b.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  Get the term frequency saturation parameter.
+   *  @return k1.
+   */
+  public double getK1 () {
+    return this.k1;
+  }
+
+  /**
+   *  Get the query term frequency saturation parameter.
+   *  @return k3.
+   */
+  public double getK3 () {
+    return this.k3;
+  }
+
+}
@@ -0,0 +1,59 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  An object that stores parameters for the Indri retrieval model
+ *  (query likelihood with Dirichlet and Jelinek-Mercer smoothing) and
+ *  indicates to the query operators how the query should be
+ *  evaluated.  Scores are log probabilities.
+ */
+public class RetrievalModelIndri extends RetrievalModel {
+
+  /**
+   *  mu controls Dirichlet smoothing with the field's background
+   *  probabilities, and lambda controls Jelinek-Mercer (linear)
+   *  smoothing with them.
+   */
+  private double mu;
+  private double lambda;
+
+  /**
+   *  Create an Indri retrieval model.
+   *  @param mu The Dirichlet smoothing parameter (mu &gt;= 0).
+   *  @param lambda The linear smoothing parameter (0 &lt;= lambda &lt;= 1).
+   *  @throws IllegalArgumentException A parameter is out of range.
+   */
+  public RetrievalModelIndri (double mu, double lambda)
+    throws IllegalArgumentException {
+
+    if ((mu < 0.0) || (lambda < 0.0) || (lambda > 1.0)) {
+      throw new IllegalArgumentException
+        ("Indri requires mu >= 0 and 0 <= lambda <= 1");
+    }
+
+    this.mu = mu;
+    this.lambda = lambda;
+  }
+
+  public String defaultQrySopName () {
+    return new String ("#and");
+  }
+
+  /**
+   *  Get the linear smoothing parameter.
+   *  @return lambda.
+   */
+  public double getLambda () {
+    return this.lambda;
+  }
+
+  /**
+   *  Get the Dirichlet smoothing parameter.
+   *  @return mu.
+   */
+  public double getMu () {
+    return this.mu;
+  }
+
+}
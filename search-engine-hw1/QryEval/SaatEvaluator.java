@@ -0,0 +1,182 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Score-at-a-time evaluation of flat queries with an ImpactIndex.
+ *  The query's terms are read one impact segment at a time, highest
+ *  impact first across all terms, so the documents with the highest
+ *  scores are found first.  Evaluation stops when the segments run
+ *  out or the model's posting budget is spent, which puts a ceiling
+ *  on the cost of each query.  Without a budget, the results are the
+ *  same as document-at-a-time evaluation (for tf up to
+ *  ImpactIndex.MAX_IMPACT).
+ *  <p>
+ *  Supported queries are a term, or an #AND or #OR of terms, under
+ *  the ranked Boolean model.  Because segments arrive in order of
+ *  decreasing impact, the first impact seen for a document is its #OR
+ *  score (the max), and the impact that completes a document's match
+ *  is its #AND score (the min).
+ *  </p><p>
+ *  Accumulators are two arrays of maxDoc ints that are reused across
+ *  queries.  A document's accumulator is valid only if its stamp is
+ *  the current query's, so they are never cleared.
+ *  </p>
+ */
+public class SaatEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static int[] stamps = new int[0];
+  private static int[] accumulators = new int[0];
+  private static int stamp = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate a query score-at-a-time, if it is supported.
+   *  @param q A query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param k The number of documents to return.
+   *  @return The k best documents, sorted, or null if the query
+   *  isn't supported or the current index has no ImpactIndex.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (QrySop q, RetrievalModel r, int k)
+    throws IOException {
+
+    ImpactIndex index = Idx.getImpactIndex ();
+
+    if ((index == null) ||
+        (! (r instanceof RetrievalModelRankedBoolean))) {
+      return null;
+    }
+
+    //  Find each term's segments.  A term that doesn't occur has no
+    //  segments.
+
+    List<QryIopTerm> terms = QryPlanner.getFlatTerms (q);
+
+    if (terms == null) {
+      return null;
+    }
+
+    boolean isAnd = (q instanceof QrySopAnd);
+    int n = terms.size ();
+    int[] segments = new int[n];
+    int[] endSegments = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      QryIopTerm term = terms.get (i);
+
+      if (! index.hasField (term.getField ())) {
+        return null;
+      }
+
+      int t = index.findTerm (term.getField (), term.getTerm ());
+
+      if (t >= 0) {
+        segments[i] = index.getFirstSegment (t);
+        endSegments[i] = index.getEndSegment (t);
+      }
+    }
+
+    //  Read segments in order of decreasing impact until the segments
+    //  or the budget run out.  An accumulator holds the number of the
+    //  query's terms that matched the document so far (high bits)
+    //  and the impact of the last match (low 8 bits).
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    int current = nextStamp (maxDoc);
+    long budget = (r.getPostingBudget () > 0) ? r.getPostingBudget () : Long.MAX_VALUE;
+    long postingsRead = 0;
+    int segmentsRead = 0;
+    int[] touched = new int[1024];
+    int numTouched = 0;
+
+    while (postingsRead < budget) {
+
+      int best = -1;
+      int bestImpact = 0;
+
+      for (int i = 0; i < n; i++) {
+        if (segments[i] < endSegments[i]) {
+          int impact = index.getSegmentImpact (segments[i]);
+
+          if (impact > bestImpact) {
+            best = i;
+            bestImpact = impact;
+          }
+        }
+      }
+
+      if (best < 0) {
+        break;
+      }
+
+      int start = index.getSegmentStart (segments[best]);
+      int end = start + (int) Math.min (index.getSegmentEnd (segments[best]) - start,
+                                        budget - postingsRead);
+
+      for (int p = start; p < end; p++) {
+        int docid = index.getDocid (p);
+
+        if (stamps[docid] != current) {
+          stamps[docid] = current;
+          accumulators[docid] = (1 << 8) | bestImpact;
+
+          if (numTouched == touched.length) {
+            touched = Arrays.copyOf (touched, 2 * touched.length);
+          }
+
+          touched[numTouched++] = docid;
+        } else if (isAnd) {
+          accumulators[docid] = ((accumulators[docid] >>> 8) + 1) << 8 | bestImpact;
+        }
+      }
+
+      postingsRead += end - start;
+      segmentsRead ++;
+      segments[best] ++;
+    }
+
+    //  #OR matches every document that was seen.  #AND matches the
+    //  documents that all of the arguments matched.
+
+    TopKCollector results = new TopKCollector (k);
+
+    for (int j = 0; j < numTouched; j++) {
+      int docid = touched[j];
+      int accumulator = accumulators[docid];
+
+      if ((! isAnd) || ((accumulator >>> 8) == n)) {
+        results.collect (docid, accumulator & 0xff);
+      }
+    }
+
+    System.out.println ("    SAAT:  postings=" + postingsRead +
+                        " segments=" + segmentsRead +
+                        " documents=" + numTouched +
+                        ((postingsRead >= budget) ? " (budget)" : ""));
+
+    return results.getScoreList ();
+  }
+
+  /**
+   *  Start a query's accumulators.
+   *  @param maxDoc The number of documents in the index.
+   *  @return The stamp of the query's accumulators.
+   */
+  private static int nextStamp (int maxDoc) {
+
+    if ((stamps.length < maxDoc) || (stamp == Integer.MAX_VALUE)) {
+      stamps = new int[maxDoc];
+      accumulators = new int[maxDoc];
+      stamp = 0;
+    }
+
+    return ++ stamp;
+  }
+}
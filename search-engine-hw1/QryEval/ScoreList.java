@@ -11,7 +11,8 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external docid is looked up only when it is needed
+  //  (see resolveExternalDocids); until then it is null.
 
   private class ScoreListEntry {
     private int docid;
@@ -21,13 +22,12 @@ public class ScoreList {
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+    }
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
+    private ScoreListEntry(int internalDocid, double score, String externalId) {
+      this.docid = internalDocid;
+      this.score = score;
+      this.externalId = externalId;
     }
   }
 
@@ -45,6 +45,18 @@ public class ScoreList {
     scores.add(new ScoreListEntry(docid, score));
   }
 
+  /**
+   *  Append a document score to a score list when the document's
+   *  external id may already be known.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @param externalId The document's external id, or null if it
+   *  has not been looked up.
+   */
+  public void add(int docid, double score, String externalId) {
+    scores.add(new ScoreListEntry(docid, score, externalId));
+  }
+
   /**
    *  Get the internal docid of the n'th entry.
    *  @param n The index of the requested document.
@@ -72,10 +84,57 @@ public class ScoreList {
     this.scores.get(n).score = score;
   }
 
-
+  /**
+   *  Get the external docid of the n'th entry.  It is looked up if
+   *  necessary; use resolveExternalDocids first to look up many.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
   public String getExternalDocid(int n) {
-    return this.scores.get(n).externalId;
+    ScoreListEntry entry = this.scores.get(n);
+
+    if (entry.externalId == null) {
+      resolve(Collections.singletonList(entry));
+    }
+
+    return entry.externalId;
+  }
+
+  /**
+   *  Look up the external docids of entries that don't have one yet.
+   *  The lookups are done in internal docid order, so that each block
+   *  of Lucene's stored fields is decompressed once.
+   *  @param entries The entries to resolve.
+   */
+  private static void resolve(List<ScoreListEntry> entries) {
+    List<ScoreListEntry> pending = new ArrayList<ScoreListEntry>();
+
+    for (ScoreListEntry entry : entries) {
+      if (entry.externalId == null) {
+        pending.add(entry);
+      }
+    }
+
+    pending.sort((s1, s2) -> Integer.compare(s1.docid, s2.docid));
+
+    try {
+      for (ScoreListEntry entry : pending) {
+        entry.externalId = Idx.getExternalDocid (entry.docid);
+      }
+    }
+    catch (IOException ex){
+      ex.printStackTrace();
+    }
   }
+
+  /**
+   *  Look up the external docids of every entry.  Call this after
+   *  the list has been sorted and truncated.
+   */
+  public void resolveExternalDocids() {
+    resolve(this.scores);
+  }
+
   /**
    *  Get the size of the score list.
    *  @return The size of the posting list.
@@ -86,7 +145,7 @@ public class ScoreList {
 
   /*
    *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+   *  external docid.  The external docids must be resolved.
    *
    *  STUDENTS:: You may need to modify this or create a new
    *  comparator to sort ScoreLists appropriately for your HW.
@@ -103,10 +162,50 @@ public class ScoreList {
   }
 
   /**
-   *  Sort the list by score and external document id.
+   *  Sort the list by score and external document id.  External ids
+   *  are looked up only for entries whose scores tie.
    */
   public void sort () {
-    Collections.sort(this.scores, new ScoreListComparator());
+    Collections.sort(this.scores,
+                     (s1, s2) -> Double.compare(s2.score, s1.score));
+
+    //  Find the runs of tied scores and resolve them together.
+
+    List<ScoreListEntry> tied = new ArrayList<ScoreListEntry>();
+
+    for (int i = 1; i < this.scores.size(); i++) {
+      if (Double.compare(this.scores.get(i - 1).score,
+                         this.scores.get(i).score) == 0) {
+        if ((i == 1) ||
+            (Double.compare(this.scores.get(i - 2).score,
+                            this.scores.get(i).score) != 0)) {
+          tied.add(this.scores.get(i - 1));
+        }
+        tied.add(this.scores.get(i));
+      }
+    }
+
+    if (tied.isEmpty()) {
+      return;
+    }
+
+    resolve(tied);
+
+    //  Sort each run of tied scores by external docid.
+
+    ScoreListComparator comparator = new ScoreListComparator();
+    int start = 0;
+
+    for (int i = 1; i <= this.scores.size(); i++) {
+      if ((i == this.scores.size()) ||
+          (Double.compare(this.scores.get(start).score,
+                          this.scores.get(i).score) != 0)) {
+        if (i - start > 1) {
+          Collections.sort(this.scores.subList(start, i), comparator);
+        }
+        start = i;
+      }
+    }
   }
   
   /**
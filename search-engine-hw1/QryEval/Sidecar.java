@@ -0,0 +1,82 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ *  Utilities shared by the sidecar files that are stored next to an
+ *  index directory (e.g., DocidMap, BlockMaxIndex, ImpactIndex and
+ *  TermStats).  A sidecar records the id of the index commit that it
+ *  was built from, so that a stale sidecar can be ignored.
+ */
+class Sidecar {
+
+  /**
+   *  The number of bytes in an index id.
+   */
+  static final int INDEX_ID_LENGTH = StringHelper.ID_LENGTH;
+
+  /**
+   *  Get the unique id of the index commit that a reader reads.
+   *  Lucene gives each commit a new random id, so an index that is
+   *  rebuilt at the same path gets a different id.  (The index
+   *  version doesn't identify an index; it only counts changes.)
+   *  @param reader An IndexReader.
+   *  @return The id, or INDEX_ID_LENGTH 0 bytes if the reader doesn't
+   *  read a commit.
+   *  @throws IOException Error reading the commit.
+   */
+  static byte[] getIndexId (IndexReader reader) throws IOException {
+
+    if (reader instanceof DirectoryReader) {
+      IndexCommit commit = ((DirectoryReader) reader).getIndexCommit ();
+      byte[] id = SegmentInfos.readCommit (commit.getDirectory (),
+                                           commit.getSegmentsFileName ()).getId ();
+
+      if (id != null) {
+        return id;
+      }
+    }
+
+    return new byte[INDEX_ID_LENGTH];
+  }
+
+  /**
+   *  Get the path of a sidecar file of an index.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param suffix The sidecar's suffix (e.g., ".docids").
+   *  @return The path of the sidecar file.
+   */
+  static Path getPath (String indexPath, String suffix) {
+    Path index = Paths.get (indexPath).toAbsolutePath ().normalize ();
+    return index.resolveSibling (index.getFileName () + suffix);
+  }
+
+  /**
+   *  Indicates whether a sidecar was built from the index commit that
+   *  a reader reads.
+   *  @param buffer The contents of a sidecar file.
+   *  @param offset The position of the index id in the sidecar.
+   *  @param reader An IndexReader.
+   *  @return True if the sidecar's index id is the reader's.
+   *  @throws IOException Error reading the commit.
+   */
+  static boolean isCurrent (ByteBuffer buffer, int offset, IndexReader reader)
+    throws IOException {
+
+    byte[] id = getIndexId (reader);
+
+    for (int i = 0; i < id.length; i++) {
+      if (buffer.get (offset + i) != id[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
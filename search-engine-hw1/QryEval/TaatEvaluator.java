@@ -0,0 +1,212 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  Term-at-a-time evaluation of flat queries.  Each term's inverted
+ *  list is read once, in a tight loop over primitive arrays, into a
+ *  dense accumulator; the query operators' iterators aren't used.
+ *  <p>
+ *  Supported queries are a term, or an #AND or #OR of terms, under
+ *  the Boolean models.  #OR keeps the max score of each document.
+ *  #AND reads the terms from the rarest to the most common, and only
+ *  updates documents that all of the previous terms matched; it keeps
+ *  the min score.
+ *  </p><p>
+ *  The accumulators (a float[] of scores and an int[] of match
+ *  counts) have maxDoc entries and are reused across queries.  The
+ *  documents that a query touched are recorded, and only those
+ *  entries are reset afterwards.
+ *  </p>
+ */
+public class TaatEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static float[] scores = new float[0];
+  private static int[] counts = new int[0];
+
+  /**
+   *  Buffers for postings that are read from the Lucene index.
+   */
+  private static int[] postingDocids = new int[0];
+  private static int[] postingTfs = new int[0];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate a query term-at-a-time, if it is supported.
+   *  @param q A query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param k The number of documents to return.
+   *  @return The k best documents, sorted, or null if the query isn't
+   *  supported.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (QrySop q, RetrievalModel r, int k)
+    throws IOException {
+
+    List<QryIopTerm> terms = QryPlanner.getFlatTerms (q);
+
+    if ((terms == null) || (! isSupported (r))) {
+      return null;
+    }
+
+    boolean isAnd = (q instanceof QrySopAnd);
+    boolean isRanked = (r instanceof RetrievalModelRankedBoolean);
+    int n = terms.size ();
+
+    //  #AND reads the rarest term first, so that fewer documents are
+    //  touched.
+
+    if (isAnd) {
+      terms = new ArrayList<QryIopTerm> (terms);
+      final Map<QryIopTerm,Long> dfs = new HashMap<QryIopTerm,Long> ();
+
+      for (QryIopTerm term : terms) {
+        dfs.put (term, Idx.getDocFreq (term.getField (), term.getTerm ()));
+      }
+
+      terms.sort ((a, b) -> Long.compare (dfs.get (a), dfs.get (b)));
+    }
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+
+    if (scores.length < maxDoc) {
+      scores = new float[maxDoc];
+      counts = new int[maxDoc];
+    }
+
+    int[] touched = new int[1024];
+    int numTouched = 0;
+
+    for (int i = 0; i < n; i++) {
+
+      //  A conjunction stops if its rarest term doesn't occur.
+
+      if (isAnd && (i > 0) && (numTouched == 0)) {
+        break;
+      }
+
+      QryIopTerm term = terms.get (i);
+      int[] docids;
+      int[] tfs;
+      int df;
+
+      if (PostingsCache.isEnabled ()) {
+        InvList invList =
+          PostingsCache.get (term.getTerm (), term.getField (),
+                             isRanked ? PostingsEnum.FREQS : PostingsEnum.NONE);
+        docids = invList.docids;
+        tfs = invList.tfs;
+        df = invList.df;
+      } else {
+        df = readPostings (term);
+        docids = postingDocids;
+        tfs = postingTfs;
+      }
+
+      for (int j = 0; j < df; j++) {
+        int docid = docids[j];
+        float score = isRanked ? tfs[j] : 1.0f;
+        int count = counts[docid];
+
+        if (count == 0) {
+          if (isAnd && (i > 0)) {
+            continue;
+          }
+
+          if (numTouched == touched.length) {
+            touched = Arrays.copyOf (touched, 2 * touched.length);
+          }
+
+          touched[numTouched++] = docid;
+          scores[docid] = score;
+        } else if (isAnd) {
+          if (count != i) {
+            continue;
+          }
+
+          scores[docid] = Math.min (scores[docid], score);
+        } else {
+          scores[docid] = Math.max (scores[docid], score);
+        }
+
+        counts[docid] = count + 1;
+      }
+    }
+
+    //  Collect the matches, and reset the accumulators that the query
+    //  touched.
+
+    TopKCollector results = new TopKCollector (k);
+
+    for (int j = 0; j < numTouched; j++) {
+      int docid = touched[j];
+
+      if ((! isAnd) || (counts[docid] == n)) {
+        results.collect (docid, scores[docid]);
+      }
+
+      scores[docid] = 0;
+      counts[docid] = 0;
+    }
+
+    return results.getScoreList ();
+  }
+
+  /**
+   *  Indicates whether term-at-a-time evaluation supports a retrieval
+   *  model.
+   *  @param r A retrieval model.
+   *  @return True if the model is supported.
+   */
+  public static boolean isSupported (RetrievalModel r) {
+    return ((r instanceof RetrievalModelUnrankedBoolean) ||
+            (r instanceof RetrievalModelRankedBoolean));
+  }
+
+  /**
+   *  Read a term's docids and term frequencies from the Lucene index
+   *  into postingDocids and postingTfs.
+   *  @param term A term.
+   *  @return The number of postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static int readPostings (QryIopTerm term) throws IOException {
+
+    Term luceneTerm = new Term (term.getField (), new BytesRef (term.getTerm ()));
+    int maxDf = Idx.INDEXREADER.docFreq (luceneTerm);
+    int df = 0;
+
+    if (postingDocids.length < maxDf) {
+      postingDocids = new int[maxDf];
+      postingTfs = new int[maxDf];
+    }
+
+    for (LeafReaderContext context : Idx.INDEXREADER.leaves ()) {
+      PostingsEnum postings =
+        context.reader ().postings (luceneTerm, PostingsEnum.FREQS);
+
+      if (postings == null) {
+        continue;
+      }
+
+      int docid;
+
+      while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+        postingDocids[df] = context.docBase + docid;
+        postingTfs[df] = postings.freq ();
+        df ++;
+      }
+    }
+
+    return df;
+  }
+}
@@ -0,0 +1,377 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A process-wide cache of the current index's collection statistics:
+ *  the document frequency (df) and collection term frequency (ctf) of
+ *  each (field, term) pair that was requested, the number of
+ *  documents and the total length of each field, and the number of
+ *  documents in the corpus.  Query expansion and feature extraction
+ *  ask for the same statistics many times; without the cache, each
+ *  request seeks the terms dictionary of every segment.  A miss looks
+ *  up df and ctf together, with one seek per segment.
+ *  <p>
+ *  The cache can be saved in a sidecar file next to the index
+ *  directory (e.g., index.stats next to index/), so that later runs
+ *  start warm.  The file contains a header, the field totals, and the
+ *  term statistics sorted by "field:term" key.  Sorted keys are front
+ *  coded (the length of the prefix shared with the previous key, then
+ *  the rest of the key), and numbers are variable-byte encoded.  A
+ *  sidecar that was saved from a different commit of the index is
+ *  ignored.
+ *  </p>
+ */
+public class TermStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455354;		// "QEST"
+  private static final int VERSION = 2;
+  private static final String SUFFIX = ".stats";
+
+  /**
+   *  {df, ctf} of each "field:term" key, and {docCount, sumOfLengths}
+   *  of each field.
+   */
+  private static final ConcurrentHashMap<String,long[]> termStats =
+    new ConcurrentHashMap<String,long[]> ();
+  private static final ConcurrentHashMap<String,long[]> fieldStats =
+    new ConcurrentHashMap<String,long[]> ();
+
+  /**
+   *  The number of documents in the corpus, or -1 until it is needed.
+   */
+  private static volatile long numDocs = -1;
+
+  private static final AtomicLong hits = new AtomicLong ();
+  private static final AtomicLong misses = new AtomicLong ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Remove all statistics from the cache, e.g., because the current
+   *  index changed.  Hit and miss counts are not reset.
+   */
+  public static void clear () {
+    termStats.clear ();
+    fieldStats.clear ();
+    numDocs = -1;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The ctf, or 0 if the term doesn't occur.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getCtf (String fieldName, String term)
+    throws IOException {
+    return getTermStats (fieldName, term)[1];
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The df, or 0 if the term doesn't occur.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDf (String fieldName, String term)
+    throws IOException {
+    return (int) getTermStats (fieldName, term)[0];
+  }
+
+  /**
+   *  Get the number of documents that contain a field.
+   *  @param fieldName The field name.
+   *  @return The number of documents that contain the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocCount (String fieldName)
+    throws IOException {
+    return (int) getFieldStats (fieldName)[0];
+  }
+
+  /**
+   *  Get the field totals, from the cache if possible.
+   *  @param fieldName The field name.
+   *  @return {docCount, sumOfLengths}.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static long[] getFieldStats (String fieldName)
+    throws IOException {
+
+    long[] stats = fieldStats.get (fieldName);
+
+    if (stats == null) {
+      stats = new long[] {
+        Idx.INDEXREADER.getDocCount (fieldName),
+        Idx.INDEXREADER.getSumTotalTermFreq (fieldName) };
+      fieldStats.put (fieldName, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Get the number of documents in the corpus.
+   *  @return The number of documents.
+   */
+  public static long getNumDocs () {
+
+    long n = numDocs;
+
+    if (n < 0) {
+      n = Idx.INDEXREADER.numDocs ();
+      numDocs = n;
+    }
+
+    return n;
+  }
+
+  /**
+   *  Get a summary of cache activity.
+   *  @return The summary.
+   */
+  public static String getStats () {
+    return ("Term stats cache:  hits=" + hits.get () +
+            " misses=" + misses.get () +
+            " terms=" + termStats.size ());
+  }
+
+  /**
+   *  Get the total length of a field in all documents.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences in the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getSumOfFieldLengths (String fieldName)
+    throws IOException {
+    return getFieldStats (fieldName)[1];
+  }
+
+  /**
+   *  Get {df, ctf} of a term, from the cache if possible.  Concurrent
+   *  misses for the same term may both read the index; they store the
+   *  same values.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return {df, ctf}.  The caller must not modify it.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static long[] getTermStats (String fieldName, String term)
+    throws IOException {
+
+    String key = fieldName + ":" + term;
+    long[] stats = termStats.get (key);
+
+    if (stats != null) {
+      hits.incrementAndGet ();
+      return stats;
+    }
+
+    misses.incrementAndGet ();
+
+    BytesRef bytes = new BytesRef (term);
+    long df = 0;
+    long ctf = 0;
+
+    for (LeafReaderContext leafContext : Idx.INDEXREADER.leaves ()) {
+      Terms terms = leafContext.reader ().terms (fieldName);
+
+      if (terms != null) {
+        TermsEnum termsEnum = terms.iterator ();
+
+        if (termsEnum.seekExact (bytes)) {
+          df += termsEnum.docFreq ();
+          ctf += termsEnum.totalTermFreq ();
+        }
+      }
+    }
+
+    stats = new long[] { df, ctf };
+    termStats.put (key, stats);
+    return stats;
+  }
+
+  /**
+   *  Load the sidecar file of an index into the cache, if there is a
+   *  current one.  The index must be the current index.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader An IndexReader for the index.
+   *  @return True if statistics were loaded.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static boolean open (String indexPath, IndexReader reader)
+    throws IOException {
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+
+    if (! Files.isReadable (path)) {
+      return false;
+    }
+
+    try (DataInputStream in =
+           new DataInputStream (
+             new BufferedInputStream (Files.newInputStream (path)))) {
+
+      if ((in.readInt () != MAGIC) ||
+          (in.readInt () != VERSION)) {
+        return false;
+      }
+
+      byte[] id = new byte[Sidecar.INDEX_ID_LENGTH];
+
+      in.readFully (id);
+
+      if (! Arrays.equals (id, Sidecar.getIndexId (reader))) {
+        return false;
+      }
+
+      numDocs = in.readLong ();
+
+      int numFields = in.readInt ();
+
+      for (int i = 0; i < numFields; i++) {
+        String field = in.readUTF ();
+        long docCount = readVLong (in);
+        long sumOfLengths = readVLong (in);
+        fieldStats.put (field, new long[] { docCount, sumOfLengths });
+      }
+
+      int numTerms = in.readInt ();
+      byte[] key = new byte[64];
+
+      for (int i = 0; i < numTerms; i++) {
+        int prefix = (int) readVLong (in);
+        int suffix = (int) readVLong (in);
+
+        if (prefix + suffix > key.length) {
+          key = Arrays.copyOf (key, 2 * (prefix + suffix));
+        }
+
+        in.readFully (key, prefix, suffix);
+
+        long df = readVLong (in);
+        long ctf = readVLong (in);
+
+        termStats.put (new String (key, 0, prefix + suffix, StandardCharsets.UTF_8),
+                       new long[] { df, ctf });
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Read a non-negative long in variable-byte format; see
+   *  writeVLong.
+   *  @param in The input stream.
+   *  @return The long.
+   *  @throws IOException Error reading the stream.
+   */
+  private static long readVLong (DataInput in) throws IOException {
+
+    long value = 0;
+    int shift = 0;
+    byte next;
+
+    do {
+      next = in.readByte ();
+      value |= (long) (next & 0x7f) << shift;
+      shift += 7;
+    } while (next < 0);
+
+    return value;
+  }
+
+  /**
+   *  Save the cache in the sidecar file of an index, replacing an
+   *  existing sidecar.  The index must be the current index.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader An IndexReader for the index.
+   *  @throws IOException Error writing the sidecar file.
+   */
+  public static void write (String indexPath, IndexReader reader)
+    throws IOException {
+
+    TreeMap<String,long[]> fields = new TreeMap<String,long[]> (fieldStats);
+    TreeMap<String,long[]> terms = new TreeMap<String,long[]> (termStats);
+
+    //  Write a temporary file, then move it into place, so that a
+    //  partially written sidecar is never opened.
+
+    Path path = Sidecar.getPath (indexPath, SUFFIX);
+    Path tmp = path.resolveSibling (path.getFileName () + ".tmp");
+
+    try (DataOutputStream out =
+           new DataOutputStream (
+             new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.write (Sidecar.getIndexId (reader));
+      out.writeLong (getNumDocs ());
+
+      out.writeInt (fields.size ());
+
+      for (Map.Entry<String,long[]> entry : fields.entrySet ()) {
+        out.writeUTF (entry.getKey ());
+        writeVLong (out, entry.getValue ()[0]);
+        writeVLong (out, entry.getValue ()[1]);
+      }
+
+      out.writeInt (terms.size ());
+
+      byte[] previous = new byte[0];
+
+      for (Map.Entry<String,long[]> entry : terms.entrySet ()) {
+        byte[] key = entry.getKey ().getBytes (StandardCharsets.UTF_8);
+        int prefix = 0;
+
+        while ((prefix < key.length) && (prefix < previous.length) &&
+               (key[prefix] == previous[prefix])) {
+          prefix ++;
+        }
+
+        writeVLong (out, prefix);
+        writeVLong (out, key.length - prefix);
+        out.write (key, prefix, key.length - prefix);
+        writeVLong (out, entry.getValue ()[0]);
+        writeVLong (out, entry.getValue ()[1]);
+        previous = key;
+      }
+    }
+
+    Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   *  Write a non-negative long in variable-byte format:  7 bits per
+   *  byte, low-order bits first, with the high bit set on every byte
+   *  except the last.
+   *  @param out The output stream.
+   *  @param value The long.
+   *  @throws IOException Error writing the stream.
+   */
+  private static void writeVLong (DataOutput out, long value)
+    throws IOException {
+
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte ((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+
+    out.writeByte ((int) value);
+  }
+}
@@ -5,7 +5,6 @@
 import java.io.*;
 
 import org.apache.lucene.index.PostingsEnum;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 
@@ -38,7 +37,6 @@ public class TermVector {
   private int[] positions;	// Index of the stem that at this position
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
-  private Term[] terms;
 
   //  --------------- Methods ---------------------------------------
 
@@ -66,7 +64,6 @@ public class TermVector {
 
     int stemsLength = (int) this.luceneTerms.size();
     stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
     stemsFreq = new int[stemsLength + 1];
 
     //  Iterate through the terms, filling in the stem and frequency
@@ -78,7 +75,6 @@ public class TermVector {
     int lastPosition = 0;
     for (int i = 1; ithTerm.next() != null; i++) {
       stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
       stemsFreq[i] = (int) ithTerm.totalTermFreq();
       fieldLength += stemsFreq[i]; 
 
@@ -196,7 +192,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return Idx.getTotalTermFreq (this.fieldName, stems[i]);
   }
   
   /**
@@ -206,7 +202,7 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return (int) Idx.getDocFreq (this.fieldName, stems[i]);
   }
   
 }
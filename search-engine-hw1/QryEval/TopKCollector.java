@@ -0,0 +1,237 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  Collect the k best documents of a query as they are scored.  The
+ *  order is the same as ScoreList.sort:  higher scores first, and
+ *  ties are broken by ascending external document id.
+ *  <p>
+ *  The collector is a min-heap of at most k (score, docid) pairs
+ *  stored in primitive arrays; the root is the worst document
+ *  collected so far.  External ids are looked up only when two
+ *  scores tie, so most documents, collected or not, never touch
+ *  stored fields; ScoreList.resolveExternalDocids looks up the rest
+ *  after selection.  getThreshold exposes the root's score so that
+ *  query operators can skip documents that can't be collected.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private int k;
+  private int size = 0;
+
+  /**
+   *  The heap.  Entry i has a score, an internal docid, and an
+   *  external docid that is null until a tie requires it.
+   */
+  private double[] scores;
+  private int[] docids;
+  private String[] externalIds;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The maximum number of documents to collect.
+   */
+  public TopKCollector (int k) {
+    this.k = Math.max (k, 0);
+    this.scores = new double[this.k];
+    this.docids = new int[this.k];
+    this.externalIds = new String[this.k];
+  }
+
+  /**
+   *  Offer a document to the collector.  It is kept if fewer than k
+   *  documents have been collected, or if it is better than the worst
+   *  document collected so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void collect (int docid, double score) throws IOException {
+
+    if (this.size < this.k) {
+      this.scores[this.size] = score;
+      this.docids[this.size] = docid;
+      this.externalIds[this.size] = null;
+      this.siftUp (this.size);
+      this.size ++;
+      return;
+    }
+
+    if (this.k == 0) {
+      return;
+    }
+
+    int cmp = Double.compare (score, this.scores[0]);
+    String externalId = null;
+
+    if (cmp < 0) {
+      return;
+    }
+
+    if (cmp == 0) {
+      externalId = Idx.getExternalDocid (docid);
+
+      if (externalId.compareTo (this.getExternalId (0)) >= 0) {
+        return;
+      }
+    }
+
+    this.scores[0] = score;
+    this.docids[0] = docid;
+    this.externalIds[0] = externalId;
+    this.siftDown (0, this.size);
+  }
+
+  /**
+   *  Get the score that a document must reach to be collected.  A
+   *  document with a lower score is rejected; a document with an
+   *  equal score is collected only if its external id sorts before
+   *  the worst document's.
+   *  @return The threshold, or -Infinity if fewer than k documents
+   *  have been collected.
+   */
+  public double getThreshold () {
+    if ((this.size < this.k) || (this.k == 0)) {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    return this.scores[0];
+  }
+
+  /**
+   *  Get the collected documents, best first.  This empties the
+   *  collector.  External ids that were looked up are passed along
+   *  to the ScoreList.
+   *  @return The collected documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList getScoreList () throws IOException {
+
+    //  Heapsort:  each pass moves the worst remaining document to the
+    //  end of the heap, so the arrays end up in best-first order.
+
+    int n = this.size;
+
+    for (int end = n - 1; end > 0; end--) {
+      this.swap (0, end);
+      this.siftDown (0, end);
+    }
+
+    ScoreList results = new ScoreList ();
+
+    for (int i = 0; i < n; i++) {
+      results.add (this.docids[i], this.scores[i], this.externalIds[i]);
+    }
+
+    this.size = 0;
+    return results;
+  }
+
+  /**
+   *  Get the number of documents collected.
+   *  @return The number of documents collected.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the external id of a heap entry, looking it up if necessary.
+   *  @param i A heap entry.
+   *  @return The external id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private String getExternalId (int i) throws IOException {
+    if (this.externalIds[i] == null) {
+      this.externalIds[i] = Idx.getExternalDocid (this.docids[i]);
+    }
+
+    return this.externalIds[i];
+  }
+
+  /**
+   *  Indicates whether heap entry i is worse than entry j.
+   *  @param i A heap entry.
+   *  @param j A heap entry.
+   *  @return True if entry i sorts after entry j.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private boolean isWorse (int i, int j) throws IOException {
+    int cmp = Double.compare (this.scores[i], this.scores[j]);
+
+    if (cmp != 0) {
+      return (cmp < 0);
+    }
+
+    return (this.getExternalId (i).compareTo (this.getExternalId (j)) > 0);
+  }
+
+  /**
+   *  Restore the heap property below entry i.
+   *  @param i A heap entry.
+   *  @param size The number of entries in the heap.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void siftDown (int i, int size) throws IOException {
+
+    while (2 * i + 1 < size) {
+      int c = 2 * i + 1;
+
+      if ((c + 1 < size) && this.isWorse (c + 1, c)) {
+        c ++;
+      }
+
+      if (! this.isWorse (c, i)) {
+        break;
+      }
+
+      this.swap (i, c);
+      i = c;
+    }
+  }
+
+  /**
+   *  Restore the heap property above entry i.
+   *  @param i A heap entry.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void siftUp (int i) throws IOException {
+
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (! this.isWorse (i, parent)) {
+        break;
+      }
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   *  Swap two heap entries.
+   *  @param i A heap entry.
+   *  @param j A heap entry.
+   */
+  private void swap (int i, int j) {
+
+    double score = this.scores[i];
+    int docid = this.docids[i];
+    String externalId = this.externalIds[i];
+
+    this.scores[i] = this.scores[j];
+    this.docids[i] = this.docids[j];
+    this.externalIds[i] = this.externalIds[j];
+
+    this.scores[j] = score;
+    this.docids[j] = docid;
+    this.externalIds[j] = externalId;
+  }
+}
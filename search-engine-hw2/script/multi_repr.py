@@ -14,7 +14,7 @@ if __name__ == "__main__":
     with open(input_file_name) as f:
         lines = f.readlines()
     with open(output_file_name, 'w') as f:
-        fields = [".url", ".keywords", ".title", ".body"]
+        fields = ["url", "keywords", "title", "body"]
         weights = [str(w_url), str(w_keywords), str(w_title), str(w_body)]
         for line in lines:
             data = line.split(":")
@@ -23,12 +23,11 @@ if __name__ == "__main__":
             words = qry.split(" ")
             new_qry = [id, ":", "#AND( "]
             for word in words:
-                new_qry.append("#WSUM(")
+                new_qry.append("#FIELDS(")
                 for i in range(len(fields)):
                     weight, field = weights[i], fields[i]
-                    new_qry.append(weight)
-                    new_qry.append(word.strip("\n") + field)
-                    
+                    new_qry.append(field + ":" + weight)
+                new_qry.append(word.strip("\n"))
                 new_qry.append(")")
             new_qry.append(")")
             output = " ".join(new_qry)
@@ -36,7 +35,7 @@ if __name__ == "__main__":
             f.write("\n")
             
             
-    # 33:#AND( #WSUM(0.1 elliptical.url 0.2 elliptical.title 0.3 elliptical.inlink 0.4 elliptical.body) #WSUM(0.1 trainer.url 0.2 trainer.title 0.3 trainer.inlink 0.4 trainer.body))
+    # 33:#AND( #FIELDS( url:0.1 keywords:0.2 title:0.3 body:0.4 elliptical ) #FIELDS( url:0.1 keywords:0.2 title:0.3 body:0.4 trainer ) )
 
         
     